@@ -25,6 +25,24 @@ public interface IConstants {
      */
     public static final String SERVER_ADDRESS_PROPERTY = "org.sdshare.serveraddress";
 
+    /**
+     * Constant for the property name of the file where the performance
+     * baseline of a test run is written to.
+     */
+    public static final String BASELINE_PROPERTY = "org.sdshare.baseline";
+
+    /**
+     * Constant for the property name of the file where the structured test
+     * events are written to (as JSON lines).
+     */
+    public static final String EVENTS_PROPERTY = "org.sdshare.events";
+
+    /**
+     * Constant for the property name of a file which lists the collection
+     * feed IRIs (one per line) the tests are restricted to.
+     */
+    public static final String SHARD_PROPERTY = "org.sdshare.shard";
+
     /**
      * Atom 1.0 namespace.
      */
@@ -43,17 +43,29 @@ abstract class AbstractServerTestCase implements IConstants{
     /**
      * Helper method to fetch an Atom feed.
      * 
-     * The feed is not validated.
+     * The feed is not validated. The caller must close the exchange.
      *
-     * @param uri
-     * @return
-     * @throws IOException
+     * @param uri The feed IRI.
+     * @param role The role of the feed.
+     * @return The exchange which retrieved the feed.
+     * @throws IOException In case of an error.
      */
-    protected InputStream fetchAtomFeed(final URI uri) throws IOException {
-        final HttpURLConnection conn = Utils.connect(uri, MEDIA_TYPE_ATOM_XML);
-        assertEquals("Expected a status code 200 for " + uri.toString(), HttpURLConnection.HTTP_OK, conn.getResponseCode());
-        assertTrue("Expected media type application/atom+xml for " + uri.toString(), MediaType.ATOM_XML.isCompatible(MediaType.valueOf(conn.getContentType())));
-        return conn.getInputStream();
+    protected Exchange fetchAtomFeed(final URI uri, final FeedRole role) throws IOException {
+        final Exchange exchange = Utils.fetch(uri, role, MEDIA_TYPE_ATOM_XML);
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.ASSERT, role);
+        boolean accepted = false;
+        try {
+            assertEquals("Expected a status code 200 for " + uri.toString(), HttpURLConnection.HTTP_OK, exchange.getStatus());
+            assertTrue("Expected media type application/atom+xml for " + uri.toString(), MediaType.ATOM_XML.isCompatible(MediaType.valueOf(exchange.getContentType())));
+            accepted = true;
+        }
+        finally {
+            ClientOverhead.end(span);
+            if (!accepted) {
+                exchange.close();
+            }
+        }
+        return exchange;
     }
 
     /**
@@ -63,7 +75,13 @@ abstract class AbstractServerTestCase implements IConstants{
      * @query The XPath expression.
      */
     protected static Nodes query(final Node node, final String query) {
-        return node.query(query, Utils.getDefaultXPathContext());
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.QUERY, null);
+        try {
+            return node.query(query, Utils.getDefaultXPathContext());
+        }
+        finally {
+            ClientOverhead.end(span);
+        }
     }
 
     /**
@@ -72,25 +90,34 @@ abstract class AbstractServerTestCase implements IConstants{
      * or a feed with Atom XML media type.
      *
      * @param uri The URI to test
+     * @param role The role of the resource.
      */
-    protected void testWithUnknownMediaType(final URI uri) throws Exception {
+    protected void testWithUnknownMediaType(final URI uri, final FeedRole role) throws Exception {
         // <http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html>
         // Note: HTTP/1.1 servers are allowed to return responses which are
         // not acceptable according to the accept headers sent in the
         // request. In some cases, this may even be preferable to sending a
         // 406 response. User agents are encouraged to inspect the headers of
         // an incoming response to determine if it is acceptable.
-        final HttpURLConnection conn = Utils.connect(uri, _UNKNOWN_MEDIA_TYPE);
-        final int status = conn.getResponseCode();
-        if (HttpURLConnection.HTTP_NOT_ACCEPTABLE == status) {
-            // Ok, this is a reasonable answer
-        }
-        else if (HttpURLConnection.HTTP_OK == status) {
-            final MediaType responseMediaType = MediaType.valueOf(conn.getContentType());
-            assertTrue("Expected a compatible media type to " + MediaType.ATOM_XML + ", got " + responseMediaType.toString(), MediaType.ATOM_XML.isCompatible(responseMediaType));
+        final Exchange exchange = Utils.fetchHeaders(uri, role, _UNKNOWN_MEDIA_TYPE);
+        EventLog.linkChecked(getClass(), exchange);
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.ASSERT, role);
+        try {
+            final int status = exchange.getStatus();
+            if (HttpURLConnection.HTTP_NOT_ACCEPTABLE == status) {
+                // Ok, this is a reasonable answer
+            }
+            else if (HttpURLConnection.HTTP_OK == status) {
+                final MediaType responseMediaType = MediaType.valueOf(exchange.getContentType());
+                assertTrue("Expected a compatible media type to " + MediaType.ATOM_XML + ", got " + responseMediaType.toString(), MediaType.ATOM_XML.isCompatible(responseMediaType));
+            }
+            else {
+                fail("Expected either a 406 response or a 200 response, got: " + status);
+            }
         }
-        else {
-            fail("Expected either a 406 response or a 200 response, got: " + status);
+        finally {
+            ClientOverhead.end(span);
+            exchange.close();
         }
     }
 
@@ -103,7 +130,7 @@ abstract class AbstractServerTestCase implements IConstants{
      * @throws Exception In case of an error.
      */
     protected Document fetchOverviewFeed() throws Exception {
-        return fetchAtomFeedAsDOM(Utils.getServerAddress());
+        return fetchAtomFeedAsDOM(Utils.getServerAddress(), FeedRole.OVERVIEW_FEED);
     }
 
     /**
@@ -112,12 +139,32 @@ abstract class AbstractServerTestCase implements IConstants{
      * The feed is validated.
      *
      * @param uri The URI to retrieve the feed from.
+     * @param role The role of the feed.
      * @return The feed as DOM.
      * @throws Exception In case of an error.
      */
-    protected Document fetchAtomFeedAsDOM(final URI uri) throws Exception {
-        final Document doc = Utils.makeDocument(fetchAtomFeed(uri), uri);
-        validate(uri);
+    protected Document fetchAtomFeedAsDOM(final URI uri, final FeedRole role) throws Exception {
+        final Exchange exchange = fetchAtomFeed(uri, role);
+        try {
+            return toAtomDOM(exchange);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the feed retrieved by the provided exchange.
+     *
+     * The feed is validated.
+     *
+     * @param exchange The exchange which retrieved the feed.
+     * @return The feed as DOM.
+     * @throws Exception In case of an error.
+     */
+    protected Document toAtomDOM(final Exchange exchange) throws Exception {
+        final Document doc = Utils.makeDocument(exchange.openBody(), exchange.getURI());
+        validate(exchange);
         return doc;
     }
 
@@ -125,31 +172,50 @@ abstract class AbstractServerTestCase implements IConstants{
      * Checks the returned media type and if the collection feed exists.
      *
      * @param uri The IRI to check.
+     * @param role The role of the resource.
      * @param mediaType The expected media type of the IRI.
      * @throws IOException In case of an error.
      */
-    protected void testURIRetrieval(final URI uri, final String mediaType) throws IOException {
-        final HttpURLConnection conn = Utils.connect(uri, mediaType);
-        final MediaType requestMediaType = MediaType.valueOf(mediaType);
-        final MediaType responseMediaType = MediaType.valueOf(conn.getContentType());
-        assertEquals("Expected a status code 200 for " + uri.toString(), HttpURLConnection.HTTP_OK, conn.getResponseCode());
-        assertTrue("Expected a compatible media type to " + mediaType + ", got " + responseMediaType.toString(), requestMediaType.isCompatible(responseMediaType));
+    protected void testURIRetrieval(final URI uri, final FeedRole role, final String mediaType) throws IOException {
+        final Exchange exchange = Utils.fetchHeaders(uri, role, mediaType);
+        EventLog.linkChecked(getClass(), exchange);
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.ASSERT, role);
+        try {
+            final MediaType requestMediaType = MediaType.valueOf(mediaType);
+            final MediaType responseMediaType = MediaType.valueOf(exchange.getContentType());
+            assertEquals("Expected a status code 200 for " + uri.toString(), HttpURLConnection.HTTP_OK, exchange.getStatus());
+            assertTrue("Expected a compatible media type to " + mediaType + ", got " + responseMediaType.toString(), requestMediaType.isCompatible(responseMediaType));
+        }
+        finally {
+            ClientOverhead.end(span);
+            exchange.close();
+        }
     }
 
     /**
-     * Validates the document at the given URI against the Atom schema.
+     * Validates the document retrieved by the provided exchange against the Atom schema.
      */
-    protected void validate(URI uri) throws IOException, SAXException {
-        ValidationDriver driver = new ValidationDriver();
-
-        // first, locate and load the schema
-        ClassLoader cloader = Thread.currentThread().getContextClassLoader();
-        InputStream istream = cloader.getResourceAsStream("atom.rng");
-        assertNotNull("Couldn't load Atom schema", istream);
-        driver.loadSchema(new InputSource(istream));
-
-        // second, go go go!
-        assertTrue("Document " + uri + " failed to validate; see stdout",
-                   driver.validate(new InputSource(uri.toString())));
+    protected void validate(final Exchange exchange) throws IOException, SAXException {
+        final URI uri = exchange.getURI();
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.VALIDATE, exchange.getRole());
+        final boolean valid;
+        try {
+            ValidationDriver driver = new ValidationDriver();
+
+            // first, locate and load the schema
+            ClassLoader cloader = Thread.currentThread().getContextClassLoader();
+            InputStream istream = cloader.getResourceAsStream("atom.rng");
+            assertNotNull("Couldn't load Atom schema", istream);
+            driver.loadSchema(new InputSource(istream));
+
+            // second, go go go!
+            final InputSource source = new InputSource(exchange.openBody());
+            source.setSystemId(uri.toString());
+            valid = driver.validate(source);
+        }
+        finally {
+            ClientOverhead.end(span);
+        }
+        assertTrue("Document " + uri + " failed to validate; see stdout", valid);
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bloom filter of 64 bit fingerprints which grows with the number of
+ * entries.
+ * <p>
+ * The filter is a series of bit arrays. Each array holds twice the entries
+ * of its predecessor at 0.8 times its false positive probability, so the
+ * total false positive probability stays below the configured one while
+ * the number of entries does not have to be known in advance. At 1% an
+ * entry costs about 1.6 bytes in the first array and about 2.2 bytes after
+ * ten doublings; since the last array is filled only partly, the filter
+ * needs up to twice that.
+ * </p>
+ * <p>
+ * {@link #add(long)} may report an entry as already present although it is
+ * not (a false positive), but never the other way round.
+ * </p>
+ */
+final class BloomFilter {
+
+    private static final int _INITIAL_CAPACITY = 1 << 16;
+    private static final double _TIGHTENING = 0.8;
+
+    private final List<Stage> _stages;
+    private Stage _current;
+    private long _size;
+
+    /**
+     * Creates a filter.
+     *
+     * @param falsePositives The total false positive probability, i.e. 0.01.
+     */
+    public BloomFilter(final double falsePositives) {
+        if (falsePositives <= 0 || falsePositives >= 1) {
+            throw new IllegalArgumentException("The false positive probability must be between 0 and 1");
+        }
+        _stages = new ArrayList<Stage>();
+        _current = new Stage(_INITIAL_CAPACITY, falsePositives * (1 - _TIGHTENING));
+        _stages.add(_current);
+    }
+
+    /**
+     * Adds the provided fingerprint.
+     *
+     * @param fingerprint The value to add.
+     * @return <tt>true</tt> if the value was certainly not part of this
+     *          filter, <tt>false</tt> if it probably was.
+     */
+    public boolean add(final long fingerprint) {
+        if (mightContain(fingerprint)) {
+            return false;
+        }
+        if (_current.size >= _current.capacity) {
+            _current = new Stage(_current.capacity << 1, _current.falsePositives * _TIGHTENING);
+            _stages.add(_current);
+        }
+        _current.add(fingerprint);
+        _size++;
+        return true;
+    }
+
+    /**
+     * Returns if the provided fingerprint was probably added.
+     *
+     * @param fingerprint The value to check.
+     * @return <tt>false</tt> if the value was certainly not added.
+     */
+    public boolean mightContain(final long fingerprint) {
+        for (Stage stage: _stages) {
+            if (stage.mightContain(fingerprint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of entries which were added.
+     *
+     * @return The number of entries.
+     */
+    public long size() {
+        return _size;
+    }
+
+
+    /**
+     * A bit array of a fixed capacity.
+     */
+    private static final class Stage {
+
+        final long capacity;
+        final double falsePositives;
+        private final long[] _bits;
+        private final long _bitCount;
+        private final int _hashes;
+        long size;
+
+        Stage(final long capacity, final double falsePositives) {
+            this.capacity = capacity;
+            this.falsePositives = falsePositives;
+            // m = -n ln(p) / ln(2)^2, k = m / n ln(2)
+            final long bits = (long) Math.ceil(-capacity * Math.log(falsePositives) / (Math.log(2) * Math.log(2)));
+            final long words = (bits + 63) >>> 6;
+            if (words > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many entries for a Bloom filter");
+            }
+            _bits = new long[(int) words];
+            _bitCount = words << 6;
+            _hashes = Math.max(1, (int) Math.round((double) _bitCount / capacity * Math.log(2)));
+        }
+
+        void add(final long fingerprint) {
+            // Double hashing with the two halves of the fingerprint
+            final long h1 = fingerprint & 0xffffffffL;
+            final long h2 = (fingerprint >>> 32) | 1;
+            for (int i=0; i<_hashes; i++) {
+                final long bit = (h1 + i * h2) % _bitCount;
+                _bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            size++;
+        }
+
+        boolean mightContain(final long fingerprint) {
+            final long h1 = fingerprint & 0xffffffffL;
+            final long h2 = (fingerprint >>> 32) | 1;
+            for (int i=0; i<_hashes; i++) {
+                final long bit = (h1 + i * h2) % _bitCount;
+                if ((_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
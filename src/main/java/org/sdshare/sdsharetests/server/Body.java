@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A response body which can be read several times.
+ * <p>
+ * Bodies up to the spool threshold (system property
+ * <tt>org.sdshare.spool.threshold</tt>, default: 1 MiB) are kept on
+ * the heap. Larger bodies are written to a temporary file which is mapped
+ * into memory. So the heap usage does not depend on the size of the payload.
+ * </p>
+ * <p>
+ * {@link #release()} unmaps and deletes the file right away; otherwise the
+ * operating system frees the space only once the mapping is garbage
+ * collected, and on Windows the file is deleted only on exit.
+ * </p>
+ */
+final class Body {
+
+    private static final String _THRESHOLD_PROPERTY = "org.sdshare.spool.threshold";
+
+    private static final long _THRESHOLD = Long.getLong(_THRESHOLD_PROPERTY, 1 << 20);
+
+    // Max. size of a single mapping
+    private static final long _SEGMENT_SIZE = 1 << 30;
+
+    private static final Body _EMPTY = new Body(new byte[0]);
+
+    private final byte[] _bytes;
+    private final List<MappedByteBuffer> _segments;
+    private final File _file;
+    private final long _length;
+    private volatile boolean _released;
+
+    Body(final byte[] bytes) {
+        _bytes = bytes;
+        _segments = null;
+        _file = null;
+        _length = bytes.length;
+    }
+
+    private Body(final List<MappedByteBuffer> segments, final File file, final long length) {
+        _bytes = null;
+        _segments = segments;
+        _file = file;
+        _length = length;
+    }
+
+    /**
+     * Returns an empty body.
+     *
+     * @return An empty body.
+     */
+    public static Body empty() {
+        return _EMPTY;
+    }
+
+    /**
+     * Reads the stream up to its end and closes it.
+     *
+     * @param in The stream to read.
+     * @return The body.
+     * @throws IOException In case of an error.
+     */
+    public static Body read(final InputStream in) throws IOException {
+        return read(in, -1);
+    }
+
+    /**
+     * Reads the provided number of bytes from the stream. The stream is not closed.
+     *
+     * @param in The stream to read.
+     * @param length The number of bytes to read or <tt>-1</tt> to read the
+     *          stream up to its end and close it.
+     * @return The body.
+     * @throws IOException In case of an error or if the stream ends prematurely.
+     */
+    public static Body read(final InputStream in, final long length) throws IOException {
+        try {
+            // Read up to threshold + 1 bytes to the heap to find out if the body must be spooled
+            final long limit = length < 0 ? _THRESHOLD + 1 : Math.min(length, _THRESHOLD + 1);
+            byte[] buff = new byte[(int) Math.min(limit, 8192)];
+            int count = 0;
+            while (count < limit) {
+                if (count == buff.length) {
+                    final byte[] bigger = new byte[(int) Math.min(buff.length * 2L, limit)];
+                    System.arraycopy(buff, 0, bigger, 0, count);
+                    buff = bigger;
+                }
+                final int len = in.read(buff, count, buff.length - count);
+                if (len == -1) {
+                    break;
+                }
+                count += len;
+            }
+            if (count > _THRESHOLD) {
+                return spool(buff, count, in, length);
+            }
+            if (length >= 0 && count < length) {
+                throw new IOException("Premature end of stream, expected " + length + " bytes, got " + count);
+            }
+            if (count == buff.length) {
+                return new Body(buff);
+            }
+            final byte[] result = new byte[count];
+            System.arraycopy(buff, 0, result, 0, count);
+            return new Body(result);
+        }
+        finally {
+            if (length < 0) {
+                in.close();
+            }
+        }
+    }
+
+    // Writes the buffered bytes and the rest of the stream to a temporary file and maps it
+    private static Body spool(final byte[] head, final int headLength, final InputStream in, final long length) throws IOException {
+        final File file = File.createTempFile("sdshare-body", ".spool");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap(head, 0, headLength));
+            long count = headLength;
+            final byte[] buff = new byte[1 << 16];
+            int len;
+            while ((length < 0 || count < length)
+                    && (len = in.read(buff, 0, (int) Math.min(buff.length, length < 0 ? Long.MAX_VALUE : length - count))) != -1) {
+                final ByteBuffer src = ByteBuffer.wrap(buff, 0, len);
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+                count += len;
+            }
+            if (length >= 0 && count < length) {
+                throw new IOException("Premature end of stream, expected " + length + " bytes, got " + count);
+            }
+            final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+            for (long pos=0; pos<count; pos+=_SEGMENT_SIZE) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(_SEGMENT_SIZE, count - pos)));
+            }
+            return new Body(Collections.unmodifiableList(segments), file, count);
+        }
+        finally {
+            raf.close();
+            // The mappings stay valid after the file was deleted (POSIX), Windows keeps a mapped file
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Unmaps and deletes the temporary file of a spooled body. The body and
+     * any stream opened before must not be used afterwards. Does nothing if
+     * the body is kept on the heap or was already released.
+     */
+    public synchronized void release() {
+        if (_segments == null || _released) {
+            return;
+        }
+        _released = true;
+        for (MappedByteBuffer segment: _segments) {
+            unmap(segment);
+        }
+        if (_file.exists()) {
+            // Fails only if the mapping could not be released, the file is deleted on exit then
+            _file.delete();
+        }
+    }
+
+    // Releases the mapping right away instead of on garbage collection, if the JVM allows it
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                // Java 9 and later
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            }
+            catch (NoSuchMethodException ex) {
+                // Java 8 and earlier
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+        catch (Exception ex) {
+            // Not supported by this JVM, the mapping is released by the garbage collector
+        }
+    }
+
+    /**
+     * Returns a new stream over this body.
+     *
+     * @return A stream positioned at the start of the body.
+     */
+    public InputStream openStream() {
+        if (_released) {
+            throw new IllegalStateException("The body was released");
+        }
+        if (_bytes != null) {
+            return new ByteArrayInputStream(_bytes);
+        }
+        if (_segments.size() == 1) {
+            return new BufferInputStream(_segments.get(0).duplicate());
+        }
+        final List<InputStream> streams = new ArrayList<InputStream>(_segments.size());
+        for (MappedByteBuffer segment: _segments) {
+            streams.add(new BufferInputStream(segment.duplicate()));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Returns the length.
+     *
+     * @return The number of bytes.
+     */
+    public long length() {
+        return _length;
+    }
+
+    /**
+     * Returns if this body is kept outside of the heap.
+     *
+     * @return <tt>true</tt> if the body was spooled to a file.
+     */
+    public boolean isSpooled() {
+        return _segments != null;
+    }
+
+
+    /**
+     * Reads from a (mapped) buffer.
+     */
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer _buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+            _buffer.position(_buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return _buffer.remaining();
+        }
+    }
+
+}
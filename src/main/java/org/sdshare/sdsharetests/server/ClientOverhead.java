@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * Accounts the time the client spends per phase (network wait, parsing,
+ * validation, XPath queries and assertions) so slow runs can be attributed
+ * to the server or to the test suite.
+ * <p>
+ * Each phase records the wall-clock time, the CPU time and the allocated
+ * bytes of the current thread (if supported by the JVM). The numbers are
+ * kept per test and per {@link FeedRole}. The time of a test which is not
+ * covered by a phase is reported as <tt>other</tt>.
+ * </p>
+ * <p>
+ * The accounting is disabled unless the system property
+ * <tt>org.sdshare.overhead</tt> is <tt>true</tt>; {@link #begin}
+ * returns <tt>null</tt> and {@link #end} does nothing in this case.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre>
+ *   final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.PARSE, role);
+ *   try {
+ *       ...
+ *   }
+ *   finally {
+ *       ClientOverhead.end(span);
+ *   }
+ * </pre>
+ * </p>
+ */
+final class ClientOverhead {
+
+    /**
+     * The client-side phases.
+     */
+    enum Phase {
+        NETWORK,
+        PARSE,
+        VALIDATE,
+        QUERY,
+        ASSERT,
+        OTHER;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final String _ENABLED_PROPERTY = "org.sdshare.overhead";
+
+    private static final boolean _ENABLED = Boolean.getBoolean(_ENABLED_PROPERTY);
+
+    private static final ThreadMXBean _THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean _CPU_SUPPORTED;
+    private static final com.sun.management.ThreadMXBean _ALLOCATION;
+
+    static {
+        boolean cpuSupported = false;
+        com.sun.management.ThreadMXBean allocation = null;
+        if (_ENABLED) {
+            cpuSupported = _THREADS.isCurrentThreadCpuTimeSupported();
+            if (cpuSupported && !_THREADS.isThreadCpuTimeEnabled()) {
+                _THREADS.setThreadCpuTimeEnabled(true);
+            }
+            try {
+                if (_THREADS instanceof com.sun.management.ThreadMXBean) {
+                    allocation = (com.sun.management.ThreadMXBean) _THREADS;
+                    if (!allocation.isThreadAllocatedMemorySupported()) {
+                        allocation = null;
+                    }
+                    else if (!allocation.isThreadAllocatedMemoryEnabled()) {
+                        allocation.setThreadAllocatedMemoryEnabled(true);
+                    }
+                }
+            }
+            catch (LinkageError ex) {
+                // Not a HotSpot VM
+                allocation = null;
+            }
+        }
+        _CPU_SUPPORTED = cpuSupported;
+        _ALLOCATION = allocation;
+    }
+
+    private static final ThreadLocal<Context> _CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    // Key: test name, role label, phase label
+    private static final Map<String, Counters> _COUNTERS = new TreeMap<String, Counters>();
+
+    private ClientOverhead() {
+        // noop.
+    }
+
+    /**
+     * Returns if the accounting is enabled.
+     *
+     * @return <tt>true</tt> if phases are measured.
+     */
+    public static boolean isEnabled() {
+        return _ENABLED;
+    }
+
+    /**
+     * Starts measuring a phase on the current thread.
+     *
+     * @param phase The phase.
+     * @param role The role of the resource which is processed or
+     *          <tt>null</tt> to use the role of the last resource fetched
+     *          by the current thread.
+     * @return A span which must be passed to {@link #end} or <tt>null</tt> if
+     *          the accounting is disabled.
+     */
+    public static Span begin(final Phase phase, final FeedRole role) {
+        if (!_ENABLED) {
+            return null;
+        }
+        final Context ctx = _CONTEXT.get();
+        if (role != null) {
+            ctx.role = role;
+        }
+        return new Span(phase, ctx.test, ctx.role);
+    }
+
+    /**
+     * Stops measuring a phase.
+     *
+     * @param span The span returned by {@link #begin}, may be <tt>null</tt>.
+     */
+    public static void end(final Span span) {
+        if (span == null) {
+            return;
+        }
+        final long wall = System.nanoTime() - span.wall;
+        final long cpu = cpuTime() - span.cpu;
+        final long allocated = allocatedBytes() - span.allocated;
+        counters(span.test, span.role, span.phase).add(wall, cpu, allocated);
+        final Context ctx = _CONTEXT.get();
+        ctx.wall += wall;
+        ctx.cpu += cpu;
+        ctx.allocated += allocated;
+    }
+
+    /**
+     * Returns a listener which assigns the phases to the running test and
+     * accounts the remaining time of each test as {@link Phase#OTHER}.
+     *
+     * @return A JUnit listener.
+     */
+    public static RunListener newTestListener() {
+        return new RunListener() {
+            @Override
+            public void testStarted(final Description description) {
+                final Context ctx = _CONTEXT.get();
+                ctx.test = testName(description);
+                ctx.role = null;
+                ctx.wall = 0;
+                ctx.cpu = 0;
+                ctx.allocated = 0;
+                ctx.start = new Span(Phase.OTHER, ctx.test, null);
+            }
+
+            @Override
+            public void testFinished(final Description description) {
+                final Context ctx = _CONTEXT.get();
+                final Span start = ctx.start;
+                if (start == null) {
+                    return;
+                }
+                counters(start.test, null, Phase.OTHER).add(
+                        Math.max(0, System.nanoTime() - start.wall - ctx.wall),
+                        Math.max(0, cpuTime() - start.cpu - ctx.cpu),
+                        Math.max(0, allocatedBytes() - start.allocated - ctx.allocated));
+                ctx.test = null;
+                ctx.role = null;
+                ctx.start = null;
+            }
+        };
+    }
+
+    /**
+     * Prints the breakdown per test and per feed role.
+     *
+     * @param out The stream to write the report to.
+     */
+    public static void report(final PrintStream out) {
+        final Map<String, Counters[]> byTest = new TreeMap<String, Counters[]>();
+        final Map<String, Counters[]> byRole = new TreeMap<String, Counters[]>();
+        synchronized (_COUNTERS) {
+            for (Map.Entry<String, Counters> entry: _COUNTERS.entrySet()) {
+                final String[] key = entry.getKey().split("\n");
+                final Phase phase = Phase.valueOf(key[2].toUpperCase());
+                slot(byTest, key[0], phase).add(entry.getValue());
+                if (phase != Phase.OTHER) {
+                    slot(byRole, key[1], phase).add(entry.getValue());
+                }
+            }
+        }
+        out.println("Client overhead per test (wall ms / CPU ms / allocated MB)");
+        print(out, "test", byTest);
+        out.println();
+        out.println("Client overhead per feed role (wall ms / CPU ms / allocated MB)");
+        print(out, "role", byRole);
+        if (!_CPU_SUPPORTED || _ALLOCATION == null) {
+            out.println("Note: CPU time " + (_CPU_SUPPORTED ? "" : "not ") + "measured, allocated bytes "
+                    + (_ALLOCATION != null ? "" : "not ") + "measured by this JVM");
+        }
+    }
+
+    private static void print(final PrintStream out, final String title, final Map<String, Counters[]> rows) {
+        final StringBuilder header = new StringBuilder(String.format("%-40s", title));
+        for (Phase phase: Phase.values()) {
+            header.append(String.format(" %23s", phase.label()));
+        }
+        out.println(header);
+        final Counters[] total = new Counters[Phase.values().length];
+        for (Map.Entry<String, Counters[]> row: rows.entrySet()) {
+            final StringBuilder line = new StringBuilder(String.format("%-40s", abbreviate(row.getKey(), 40)));
+            for (Phase phase: Phase.values()) {
+                final Counters counters = row.getValue()[phase.ordinal()];
+                line.append(' ').append(format(counters));
+                if (counters != null) {
+                    if (total[phase.ordinal()] == null) {
+                        total[phase.ordinal()] = new Counters();
+                    }
+                    total[phase.ordinal()].add(counters);
+                }
+            }
+            out.println(line);
+        }
+        final StringBuilder line = new StringBuilder(String.format("%-40s", "total"));
+        for (Phase phase: Phase.values()) {
+            line.append(' ').append(format(total[phase.ordinal()]));
+        }
+        out.println(line);
+    }
+
+    private static String format(final Counters counters) {
+        if (counters == null) {
+            return String.format("%23s", "-");
+        }
+        return String.format("%8.1f/%7.1f/%6.1f", counters.wall / 1e6,
+                _CPU_SUPPORTED ? counters.cpu / 1e6 : Double.NaN,
+                _ALLOCATION != null ? counters.allocated / (1024.0 * 1024.0) : Double.NaN);
+    }
+
+    private static String abbreviate(final String s, final int max) {
+        return s.length() <= max ? s : "..." + s.substring(s.length() - max + 3);
+    }
+
+    private static Counters slot(final Map<String, Counters[]> rows, final String key, final Phase phase) {
+        Counters[] row = rows.get(key);
+        if (row == null) {
+            row = new Counters[Phase.values().length];
+            rows.put(key, row);
+        }
+        if (row[phase.ordinal()] == null) {
+            row[phase.ordinal()] = new Counters();
+        }
+        return row[phase.ordinal()];
+    }
+
+    private static Counters counters(final String test, final FeedRole role, final Phase phase) {
+        final String key = (test != null ? test : "(setup)") + "\n"
+                + (role != null ? role.label() : "(none)") + "\n" + phase.label();
+        synchronized (_COUNTERS) {
+            Counters counters = _COUNTERS.get(key);
+            if (counters == null) {
+                counters = new Counters();
+                _COUNTERS.put(key, counters);
+            }
+            return counters;
+        }
+    }
+
+    private static String testName(final Description description) {
+        String name = description.getClassName();
+        name = name.substring(name.lastIndexOf('.') + 1);
+        return name + "." + description.getMethodName();
+    }
+
+    private static long cpuTime() {
+        return _CPU_SUPPORTED ? _THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        return _ALLOCATION != null ? _ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+
+    /**
+     * A running measurement.
+     */
+    static final class Span {
+
+        final Phase phase;
+        final String test;
+        final FeedRole role;
+        final long wall;
+        final long cpu;
+        final long allocated;
+
+        Span(final Phase phase, final String test, final FeedRole role) {
+            this.phase = phase;
+            this.test = test;
+            this.role = role;
+            // Read the cheap clock last, closest to the measured code
+            this.allocated = allocatedBytes();
+            this.cpu = cpuTime();
+            this.wall = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * Per-thread state: the running test, the role of the last fetched
+     * resource and the totals of the measured phases of the running test.
+     */
+    private static final class Context {
+        String test;
+        FeedRole role;
+        Span start;
+        long wall;
+        long cpu;
+        long allocated;
+    }
+
+
+    /**
+     * Accumulated measurements.
+     */
+    private static final class Counters {
+
+        long count;
+        long wall;
+        long cpu;
+        long allocated;
+
+        synchronized void add(final long wall, final long cpu, final long allocated) {
+            count++;
+            this.wall += wall;
+            this.cpu += cpu;
+            this.allocated += allocated;
+        }
+
+        synchronized void add(final Counters other) {
+            count += other.count;
+            wall += other.wall;
+            cpu += other.cpu;
+            allocated += other.allocated;
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Executes tasks in the order of their tier, then their depth, then their
+ * submission until the queue is empty or a deadline is reached.
+ * <p>
+ * Tasks of a lower tier run first. Within a tier, all tasks of depth
+ * <tt>n</tt> run before any task of depth <tt>n + 1</tt>, so work is spread
+ * breadth-first across the collections instead of exhausting one
+ * collection before the next one is started.
+ * </p>
+ * <p>
+ * No task is started after the deadline. Running tasks may complete
+ * within a grace period; tasks which are still running after it (i.e.
+ * waiting for a stalled response) are abandoned: their threads are
+ * interrupted and left behind as daemon threads, and the tasks are
+ * reported by {@link #getUnfinished()}.
+ * </p>
+ */
+final class CoverageScheduler {
+
+    private final PriorityQueue<Task> _queue;
+    private final long _deadline;
+    private long _sequence;
+    private final Set<Task> _running;
+    private List<Task> _unfinished;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param deadline The deadline as returned by {@link System#nanoTime()}.
+     */
+    public CoverageScheduler(final long deadline) {
+        _queue = new PriorityQueue<Task>();
+        _deadline = deadline;
+        _running = new HashSet<Task>();
+        _unfinished = Collections.emptyList();
+    }
+
+    /**
+     * Adds a task. May be called by running tasks.
+     *
+     * @param task The task to add.
+     */
+    public synchronized void submit(final Task task) {
+        task.sequence = _sequence++;
+        _queue.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Executes the tasks with the provided number of threads and returns
+     * if the queue is empty or the deadline plus the grace period is
+     * reached.
+     *
+     * @param threads The number of threads.
+     * @param graceMillis The time the running tasks may take after the deadline.
+     * @return The tasks which were not started.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public List<Task> run(final int threads, final long graceMillis) throws InterruptedException {
+        final Thread[] workers = new Thread[threads];
+        for (int i=0; i<threads; i++) {
+            workers[i] = new Thread("sdshare-scheduler-" + i) {
+                @Override
+                public void run() {
+                    Task task;
+                    while ((task = take()) != null) {
+                        try {
+                            task.execute(CoverageScheduler.this);
+                        }
+                        catch (RuntimeException ex) {
+                            task.failed(ex);
+                        }
+                        finally {
+                            done(task);
+                        }
+                    }
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        final long end = _deadline + graceMillis * 1000000L;
+        for (Thread worker: workers) {
+            final long millis = (end - System.nanoTime()) / 1000000L;
+            if (millis > 0) {
+                worker.join(millis);
+            }
+        }
+        synchronized (this) {
+            _unfinished = new ArrayList<Task>(_running);
+            final List<Task> pending = new ArrayList<Task>(_queue);
+            _queue.clear();
+            for (Thread worker: workers) {
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                }
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Returns the tasks which were still running when {@link #run} returned.
+     *
+     * @return The abandoned tasks.
+     */
+    public synchronized List<Task> getUnfinished() {
+        return _unfinished;
+    }
+
+    /**
+     * Returns if the deadline is reached.
+     *
+     * @return <tt>true</tt> if no further task will be started.
+     */
+    public boolean isExpired() {
+        return System.nanoTime() - _deadline >= 0;
+    }
+
+    // Returns the next task or null if the work is done or the deadline is reached
+    private synchronized Task take() {
+        while (true) {
+            if (isExpired()) {
+                notifyAll();
+                return null;
+            }
+            final Task task = _queue.poll();
+            if (task != null) {
+                _running.add(task);
+                return task;
+            }
+            if (_running.isEmpty()) {
+                // Nothing queued and no running task can submit new ones
+                notifyAll();
+                return null;
+            }
+            try {
+                wait(Math.max(1, (_deadline - System.nanoTime()) / 1000000L));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private synchronized void done(final Task task) {
+        _running.remove(task);
+        notifyAll();
+    }
+
+
+    /**
+     * A unit of work.
+     */
+    abstract static class Task implements Comparable<Task> {
+
+        private final int _tier;
+        private final int _depth;
+        // Assigned by the scheduler
+        long sequence;
+
+        /**
+         * Creates a task.
+         *
+         * @param tier The priority tier, lower tiers run first.
+         * @param depth The depth within the tier, i.e. the page number.
+         */
+        protected Task(final int tier, final int depth) {
+            _tier = tier;
+            _depth = depth;
+        }
+
+        public int getTier() {
+            return _tier;
+        }
+
+        public int getDepth() {
+            return _depth;
+        }
+
+        /**
+         * Executes this task.
+         *
+         * @param scheduler The scheduler to submit follow-up tasks to.
+         */
+        protected abstract void execute(CoverageScheduler scheduler);
+
+        /**
+         * Called if {@link #execute} threw an exception.
+         *
+         * @param ex The exception.
+         */
+        protected abstract void failed(RuntimeException ex);
+
+        @Override
+        public int compareTo(final Task other) {
+            if (_tier != other._tier) {
+                return _tier < other._tier ? -1 : 1;
+            }
+            if (_depth != other._depth) {
+                return _depth < other._depth ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer.
+ * <p>
+ * Each slot carries a sequence number which tells producers if the slot is
+ * free and the consumer if it was published (D. Vyukov's bounded queue).
+ * Producers never block: {@link #offer} returns <tt>false</tt> if the
+ * buffer is full.
+ * </p>
+ *
+ * @param <E> The element type.
+ */
+final class EventBuffer<E> {
+
+    private final AtomicReferenceArray<E> _slots;
+    private final AtomicLongArray _sequences;
+    private final int _mask;
+    private final AtomicLong _tail;
+    // Only accessed by the consumer
+    private long _head;
+
+    /**
+     * Creates a buffer.
+     *
+     * @param capacity The min. capacity, rounded up to a power of two.
+     */
+    public EventBuffer(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        _slots = new AtomicReferenceArray<E>(size);
+        _sequences = new AtomicLongArray(size);
+        for (int i=0; i<size; i++) {
+            _sequences.set(i, i);
+        }
+        _mask = size - 1;
+        _tail = new AtomicLong();
+    }
+
+    /**
+     * Adds an element. May be called by any thread.
+     *
+     * @param element The element to add.
+     * @return <tt>true</tt> if the element was added, <tt>false</tt> if the buffer is full.
+     */
+    public boolean offer(final E element) {
+        while (true) {
+            final long pos = _tail.get();
+            final int idx = (int) (pos & _mask);
+            final long diff = _sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (_tail.compareAndSet(pos, pos + 1)) {
+                    _slots.lazySet(idx, element);
+                    // Publishes the element to the consumer
+                    _sequences.set(idx, pos + 1);
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                // The consumer has not yet released this slot
+                return false;
+            }
+            // else: another producer claimed the slot, retry
+        }
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer thread.
+     *
+     * @return The element or <tt>null</tt> if no element is available.
+     */
+    public E poll() {
+        final long pos = _head;
+        final int idx = (int) (pos & _mask);
+        if (_sequences.get(idx) != pos + 1) {
+            return null;
+        }
+        final E element = _slots.get(idx);
+        _slots.lazySet(idx, null);
+        // Releases the slot for the next round of producers
+        _sequences.set(idx, pos + _mask + 1);
+        _head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Returns the capacity.
+     *
+     * @return The max. number of elements.
+     */
+    public int capacity() {
+        return _mask + 1;
+    }
+
+}
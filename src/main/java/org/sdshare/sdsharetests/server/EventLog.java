@@ -0,0 +1,389 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.sdshare.sdsharetests.IConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous structured event log.
+ * <p>
+ * Events are put into a bounded lock-free {@link EventBuffer} and written
+ * by a background thread, so the test threads never block on I/O. If the
+ * buffer is full, events are dropped and counted.
+ * </p>
+ * <p>
+ * {@link Type#INFO} and {@link Type#WARNING} events are always logged via
+ * SLF4J (from the background thread). If the system property
+ * {@link IConstants#EVENTS_PROPERTY} names a file, all events are appended
+ * to it as JSON lines, i.e.
+ * <pre>
+ *   {"time":"2012-07-10T12:00:00.000Z","type":"warning","thread":"main","source":"TestSnapshotsFeed","message":"No snapshots found in ..."}
+ * </pre>
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.events</tt>: The JSON lines file (default: none)</li>
+ *   <li><tt>org.sdshare.events.buffer</tt>: Capacity of the event buffer (default: 65536)</li>
+ * </ul>
+ * </p>
+ */
+final class EventLog {
+
+    /**
+     * The event types.
+     */
+    enum Type {
+        FEED_FETCHED,
+        LINK_CHECKED,
+        INFO,
+        WARNING,
+        FAILURE;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventLog.class);
+
+    private static final String _BUFFER_PROPERTY = "org.sdshare.events.buffer";
+
+    private static final String _FILE = System.getProperty(IConstants.EVENTS_PROPERTY);
+
+    private EventLog() {
+        // noop.
+    }
+
+    /**
+     * Returns if all events are written to a file. If not, only
+     * informational messages and warnings are logged.
+     *
+     * @return <tt>true</tt> if all events are recorded.
+     */
+    public static boolean isRecording() {
+        return _FILE != null;
+    }
+
+    /**
+     * Logs an informational message.
+     *
+     * @param source The class which reports the message.
+     * @param uri The IRI the message is about or <tt>null</tt>.
+     * @param message The message.
+     */
+    public static void info(final Class<?> source, final URI uri, final String message) {
+        Drainer.INSTANCE.publish(new Event(Type.INFO, source, message, "uri", uri));
+    }
+
+    /**
+     * Logs a warning.
+     *
+     * @param source The class which reports the warning.
+     * @param uri The IRI the warning is about or <tt>null</tt>.
+     * @param message The message.
+     */
+    public static void warning(final Class<?> source, final URI uri, final String message) {
+        Drainer.INSTANCE.publish(new Event(Type.WARNING, source, message, "uri", uri));
+    }
+
+    /**
+     * Records that a link was checked by retrieving it.
+     *
+     * @param source The class which checked the link.
+     * @param exchange The exchange which retrieved the link target.
+     */
+    public static void linkChecked(final Class<?> source, final Exchange exchange) {
+        if (isRecording()) {
+            Drainer.INSTANCE.publish(new Event(Type.LINK_CHECKED, source, null,
+                    "uri", exchange.getURI(),
+                    "role", exchange.getRole().label(),
+                    "accept", exchange.getAccept(),
+                    "status", exchange.getStatus(),
+                    "content_type", exchange.getContentType()));
+        }
+    }
+
+    /**
+     * Returns a listener which records the fetched resources and the test
+     * failures. Should only be registered if {@link #isRecording()}.
+     *
+     * @return A listener for {@link Utils#addExchangeListener} and JUnit.
+     */
+    public static Listener newListener() {
+        return new Listener();
+    }
+
+    /**
+     * Writes all pending events and stops the background thread. Events
+     * published afterwards are dropped.
+     */
+    public static void close() {
+        Drainer.INSTANCE.close();
+    }
+
+
+    /**
+     * Records {@link Type#FEED_FETCHED} and {@link Type#FAILURE} events.
+     */
+    static final class Listener extends RunListener implements IExchangeListener {
+
+        @Override
+        public void exchangeCompleted(final Exchange exchange) {
+            Drainer.INSTANCE.publish(new Event(Type.FEED_FETCHED, Utils.class, null,
+                    "uri", exchange.getURI(),
+                    "role", exchange.getRole().label(),
+                    "status", exchange.getStatus(),
+                    "content_type", exchange.getContentType(),
+                    "bytes", exchange.getBodyLength(),
+                    "millis", exchange.getTotalNanos() / 1000000.0));
+        }
+
+        @Override
+        public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+            Drainer.INSTANCE.publish(new Event(Type.FAILURE, Utils.class, String.valueOf(ex),
+                    "uri", uri,
+                    "role", role.label()));
+        }
+
+        @Override
+        public void testFailure(final Failure failure) {
+            final Description description = failure.getDescription();
+            Drainer.INSTANCE.publish(new Event(Type.FAILURE, null, failure.getMessage(),
+                    "test", description.getDisplayName(),
+                    "exception", failure.getException().getClass().getName()));
+        }
+    }
+
+
+    /**
+     * An immutable event.
+     */
+    static final class Event {
+
+        final Type type;
+        final long millis;
+        final String thread;
+        final Class<?> source;
+        final String message;
+        // Alternating names and values
+        final Object[] fields;
+
+        Event(final Type type, final Class<?> source, final String message, final Object... fields) {
+            this.type = type;
+            this.millis = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            this.source = source;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+
+
+    /**
+     * The background thread which writes the events.
+     */
+    private static final class Drainer extends Thread {
+
+        static final Drainer INSTANCE = new Drainer();
+
+        private static final long _IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+        private final EventBuffer<Event> _buffer;
+        private final AtomicLong _dropped;
+        private final Writer _out;
+        private final SimpleDateFormat _dateFormat;
+        private volatile boolean _closed;
+
+        private Drainer() {
+            super("sdshare-event-log");
+            setDaemon(true);
+            _buffer = new EventBuffer<Event>(Integer.getInteger(_BUFFER_PROPERTY, 65536));
+            _dropped = new AtomicLong();
+            Writer out = null;
+            if (_FILE != null) {
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_FILE, true), "utf-8"), 1 << 16);
+                }
+                catch (IOException ex) {
+                    LOG.error("Cannot open the event log " + _FILE, ex);
+                }
+            }
+            _out = out;
+            _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+            _dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            start();
+            Runtime.getRuntime().addShutdownHook(new Thread("sdshare-event-log-close") {
+                @Override
+                public void run() {
+                    Drainer.this.close();
+                }
+            });
+        }
+
+        void publish(final Event event) {
+            if (_closed || !_buffer.offer(event)) {
+                _dropped.incrementAndGet();
+            }
+        }
+
+        void close() {
+            _closed = true;
+            LockSupport.unpark(this);
+            try {
+                join(TimeUnit.SECONDS.toMillis(10));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean dirty = false;
+            while (true) {
+                final Event event = _buffer.poll();
+                if (event != null) {
+                    write(event);
+                    dirty = true;
+                    continue;
+                }
+                if (dirty) {
+                    flush();
+                    dirty = false;
+                }
+                if (_closed) {
+                    // Producers which passed the check in publish() before close
+                    final Event last = _buffer.poll();
+                    if (last != null) {
+                        write(last);
+                        dirty = true;
+                        continue;
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, _IDLE_NANOS);
+            }
+            if (_dropped.get() > 0) {
+                LOG.warn(_dropped.get() + " events were dropped, increase " + _BUFFER_PROPERTY);
+            }
+            if (_out != null) {
+                try {
+                    _out.close();
+                }
+                catch (IOException ex) {
+                    LOG.error("Cannot close the event log " + _FILE, ex);
+                }
+            }
+        }
+
+        private void write(final Event event) {
+            if (event.type == Type.INFO || event.type == Type.WARNING) {
+                final Logger log = LoggerFactory.getLogger(event.source != null ? event.source : EventLog.class);
+                if (event.type == Type.INFO) {
+                    log.info(event.message);
+                }
+                else {
+                    log.warn(event.message);
+                }
+            }
+            if (_out == null) {
+                return;
+            }
+            final StringBuilder buff = new StringBuilder(256);
+            buff.append("{\"time\":\"").append(_dateFormat.format(new Date(event.millis))).append('"');
+            field(buff, "type", event.type.label());
+            field(buff, "thread", event.thread);
+            if (event.source != null) {
+                field(buff, "source", event.source.getSimpleName());
+            }
+            if (event.message != null) {
+                field(buff, "message", event.message);
+            }
+            for (int i=0; i<event.fields.length; i+=2) {
+                if (event.fields[i + 1] != null) {
+                    field(buff, (String) event.fields[i], event.fields[i + 1]);
+                }
+            }
+            buff.append("}\n");
+            try {
+                _out.write(buff.toString());
+            }
+            catch (IOException ex) {
+                _dropped.incrementAndGet();
+            }
+        }
+
+        private void flush() {
+            if (_out != null) {
+                try {
+                    _out.flush();
+                }
+                catch (IOException ex) {
+                    LOG.error("Cannot write the event log " + _FILE, ex);
+                }
+            }
+        }
+
+        private static void field(final StringBuilder buff, final String name, final Object value) {
+            buff.append(",\"").append(name).append("\":");
+            if (value instanceof Number || value instanceof Boolean) {
+                buff.append(value);
+                return;
+            }
+            final String s = value.toString();
+            buff.append('"');
+            for (int i=0; i<s.length(); i++) {
+                final char c = s.charAt(i);
+                switch (c) {
+                    case '"': buff.append("\\\""); break;
+                    case '\\': buff.append("\\\\"); break;
+                    case '\n': buff.append("\\n"); break;
+                    case '\r': buff.append("\\r"); break;
+                    case '\t': buff.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            buff.append(String.format("\\u%04x", (int) c));
+                        }
+                        else {
+                            buff.append(c);
+                        }
+                }
+            }
+            buff.append('"');
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A completed HTTP exchange: the request, the response and its timings.
+ * <p>
+ * The response body is fully read, so it can be consumed several times.
+ * Large bodies are kept outside of the heap, see {@link Body}; close the
+ * exchange to release them.
+ * </p>
+ */
+final class Exchange implements Closeable {
+
+    private final URI _uri;
+    private final FeedRole _role;
+    private final Map<String, String> _requestHeaders;
+    private final int _status;
+    private final Map<String, List<String>> _headers;
+    private final Body _body;
+    private final long _startMillis;
+    private final long _headerNanos;
+    private final long _totalNanos;
+
+    Exchange(final URI uri, final FeedRole role, final Map<String, String> requestHeaders,
+             final int status, final Map<String, List<String>> headers, final Body body,
+             final long startMillis, final long headerNanos, final long totalNanos) {
+        _uri = uri;
+        _role = role;
+        _requestHeaders = requestHeaders;
+        _status = status;
+        _headers = headers;
+        _body = body;
+        _startMillis = startMillis;
+        _headerNanos = headerNanos;
+        _totalNanos = totalNanos;
+    }
+
+    /**
+     * Returns the requested IRI.
+     *
+     * @return The request IRI.
+     */
+    public URI getURI() {
+        return _uri;
+    }
+
+    /**
+     * Returns the role of the requested resource.
+     *
+     * @return The role.
+     */
+    public FeedRole getRole() {
+        return _role;
+    }
+
+    /**
+     * Returns the value of the request's <tt>Accept</tt> header.
+     *
+     * @return The accepted media type(s).
+     */
+    public String getAccept() {
+        return _requestHeaders.get("Accept");
+    }
+
+    /**
+     * Returns the request headers.
+     *
+     * @return An immutable map of header names to values.
+     */
+    public Map<String, String> getRequestHeaders() {
+        return Collections.unmodifiableMap(_requestHeaders);
+    }
+
+    /**
+     * Returns the HTTP status code.
+     *
+     * @return The status code.
+     */
+    public int getStatus() {
+        return _status;
+    }
+
+    /**
+     * Returns the value of the <tt>Content-Type</tt> response header.
+     *
+     * @return The content type or <tt>null</tt> if not provided.
+     */
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * Returns the (first) value of the provided response header.
+     *
+     * @param name The case-insensitive header name.
+     * @return The header value or <tt>null</tt> if the header was not sent.
+     */
+    public String getHeader(final String name) {
+        for (Map.Entry<String, List<String>> header: _headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all response headers.
+     *
+     * @return An immutable map of header names to values.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(_headers);
+    }
+
+    /**
+     * Returns a stream to read the response body from.
+     *
+     * @return A stream over the response body.
+     */
+    public InputStream openBody() {
+        return _body.openStream();
+    }
+
+    /**
+     * Returns the size of the response body.
+     *
+     * @return The number of bytes of the body.
+     */
+    public long getBodyLength() {
+        return _body.length();
+    }
+
+    /**
+     * Returns the time when the request was sent.
+     *
+     * @return The milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+        return _startMillis;
+    }
+
+    /**
+     * Returns the time from sending the request until the response headers
+     * were received (incl. connection setup).
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getHeaderNanos() {
+        return _headerNanos;
+    }
+
+    /**
+     * Returns the time from sending the request until the body was received.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return _totalNanos;
+    }
+
+    /**
+     * Releases the response body. The body must not be read afterwards.
+     */
+    @Override
+    public void close() {
+        _body.release();
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts an arbitrary number of strings with bounded memory.
+ * <p>
+ * Strings are collected in memory until {@code runSize} strings are buffered,
+ * then the buffer is sorted and written to a temporary file (a "run").
+ * {@link #sorted()} merges all runs and returns the strings in ascending
+ * order without duplicates.
+ * </p>
+ * <p>
+ * The strings must not contain line breaks; this holds for IRIs.
+ * </p>
+ */
+final class ExternalSorter {
+
+    private static final String _ENCODING = "utf-8";
+
+    private final int _runSize;
+    private final List<String> _buffer;
+    private final List<File> _runs;
+    private long _count;
+
+    /**
+     * Creates a sorter which keeps at most {@code runSize} strings in memory.
+     *
+     * @param runSize The maximum number of strings per run.
+     */
+    public ExternalSorter(final int runSize) {
+        if (runSize < 1) {
+            throw new IllegalArgumentException("The run size must be greater than zero");
+        }
+        _runSize = runSize;
+        _buffer = new ArrayList<String>(Math.min(runSize, 1 << 16));
+        _runs = new ArrayList<File>();
+    }
+
+    /**
+     * Adds a string.
+     *
+     * @param value The string to add.
+     * @throws IOException If spilling a run to disk fails.
+     */
+    public void add(final String value) throws IOException {
+        _buffer.add(value);
+        _count++;
+        if (_buffer.size() >= _runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of added strings (including duplicates).
+     *
+     * @return The number of strings.
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    /**
+     * Returns the number of runs written to disk.
+     *
+     * @return The number of runs.
+     */
+    public int getRunCount() {
+        return _runs.size();
+    }
+
+    /**
+     * Returns a source which provides the added strings in ascending order,
+     * duplicates are removed.
+     * <p>
+     * No further strings must be added afterwards.
+     * </p>
+     *
+     * @return A sorted source.
+     * @throws IOException In case of an error.
+     */
+    public Source sorted() throws IOException {
+        if (!_buffer.isEmpty()) {
+            spill();
+        }
+        return new MergingSource(_runs);
+    }
+
+    /**
+     * Deletes all runs.
+     */
+    public void dispose() {
+        for (File run: _runs) {
+            run.delete();
+        }
+        _runs.clear();
+        _buffer.clear();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(_buffer);
+        final File run = File.createTempFile("sdshare-run", ".txt");
+        run.deleteOnExit();
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), _ENCODING), 1 << 16);
+        try {
+            String prev = null;
+            for (String value: _buffer) {
+                if (!value.equals(prev)) {
+                    out.write(value);
+                    out.write('\n');
+                }
+                prev = value;
+            }
+        }
+        finally {
+            out.close();
+        }
+        _runs.add(run);
+        _buffer.clear();
+    }
+
+
+    /**
+     * A source of strings.
+     */
+    public interface Source {
+
+        /**
+         * Returns the next string.
+         *
+         * @return The next string or <tt>null</tt> if the source is exhausted.
+         * @throws IOException In case of an error.
+         */
+        String next() throws IOException;
+
+        /**
+         * Releases all resources.
+         *
+         * @throws IOException In case of an error.
+         */
+        void close() throws IOException;
+    }
+
+
+    /**
+     * K-way merge of sorted runs.
+     */
+    private static final class MergingSource implements Source {
+
+        private final PriorityQueue<Head> _heads;
+        private final List<BufferedReader> _readers;
+        private String _prev;
+
+        MergingSource(final List<File> runs) throws IOException {
+            _heads = new PriorityQueue<Head>(Math.max(1, runs.size()));
+            _readers = new ArrayList<BufferedReader>(runs.size());
+            for (File run: runs) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), _ENCODING), 1 << 16);
+                _readers.add(reader);
+                String line = reader.readLine();
+                if (line != null) {
+                    _heads.add(new Head(line, reader));
+                }
+            }
+        }
+
+        @Override
+        public String next() throws IOException {
+            while (!_heads.isEmpty()) {
+                final Head head = _heads.poll();
+                final String value = head.value;
+                final String line = head.reader.readLine();
+                if (line != null) {
+                    head.value = line;
+                    _heads.add(head);
+                }
+                if (!value.equals(_prev)) {
+                    _prev = value;
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (BufferedReader reader: _readers) {
+                reader.close();
+            }
+            _heads.clear();
+        }
+    }
+
+
+    private static final class Head implements Comparable<Head> {
+
+        String value;
+        final BufferedReader reader;
+
+        Head(final String value, final BufferedReader reader) {
+            this.value = value;
+            this.reader = reader;
+        }
+
+        @Override
+        public int compareTo(final Head other) {
+            return value.compareTo(other.value);
+        }
+    }
+
+}
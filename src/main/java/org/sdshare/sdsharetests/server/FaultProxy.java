@@ -0,0 +1,492 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local HTTP proxy which injects latency, bandwidth limits and faults
+ * into the responses of the server under test.
+ * <p>
+ * If the system property <tt>org.sdshare.proxy</tt> is <tt>true</tt>,
+ * {@link Utils} sends all requests through this proxy and names the
+ * {@link FeedRole} of each request in the <tt>X-SDShare-Role</tt> header,
+ * which the proxy removes before the request is forwarded. The faults are
+ * configured per role, so the client timeouts, retries and concurrency
+ * limits can be exercised locally, i.e. with 503 responses part way
+ * through the paging of the fragments feeds.
+ * </p>
+ * <p>
+ * The response body is passed on as it arrives from the server, with the
+ * server's <tt>Content-Length</tt> or, if the server does not send one,
+ * with the chunked transfer coding. The proxy forwards <tt>GET</tt> and
+ * <tt>HEAD</tt> requests to <tt>http</tt> servers only; <tt>CONNECT</tt>
+ * requests, and so <tt>https</tt> servers, are answered with
+ * <tt>501 Not Implemented</tt>.
+ * </p>
+ * <p>
+ * Each setting is read from <tt>org.sdshare.proxy.&lt;role&gt;.&lt;setting&gt;</tt>
+ * (i.e. <tt>org.sdshare.proxy.fragments_feed.error</tt>) and falls back to
+ * <tt>org.sdshare.proxy.&lt;setting&gt;</tt>. The probabilities are
+ * evaluated independently per request.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.proxy.port</tt>: Port (default: 0, any free port)</li>
+ *   <li><tt>org.sdshare.proxy.seed</tt>: Seed of the random generator (default: none)</li>
+ *   <li><tt>org.sdshare.proxy[.role].latency</tt>: Milliseconds before the response is sent (default: 0)</li>
+ *   <li><tt>org.sdshare.proxy[.role].jitter</tt>: Max. milliseconds added at random to the latency (default: 0)</li>
+ *   <li><tt>org.sdshare.proxy[.role].bandwidth</tt>: Bytes per second of the response body (default: 0, unlimited)</li>
+ *   <li><tt>org.sdshare.proxy[.role].error</tt>: Probability of a 503 response instead of the server's response (default: 0)</li>
+ *   <li><tt>org.sdshare.proxy[.role].stall</tt>: Probability that the response stalls before the headers (default: 0)</li>
+ *   <li><tt>org.sdshare.proxy[.role].stallmillis</tt>: Milliseconds a response stalls (default: 60000)</li>
+ *   <li><tt>org.sdshare.proxy[.role].reset</tt>: Probability that the connection is reset after half of the body, after 8 KiB if the length is unknown (default: 0)</li>
+ * </ul>
+ * </p>
+ */
+final class FaultProxy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FaultProxy.class);
+
+    /**
+     * The request header which names the {@link FeedRole} of a request.
+     */
+    static final String ROLE_HEADER = "X-SDShare-Role";
+
+    private static final String _PREFIX = "org.sdshare.proxy.";
+    private static final String _PORT_PROPERTY = _PREFIX + "port";
+    private static final String _SEED_PROPERTY = _PREFIX + "seed";
+
+    // Headers which are not forwarded (lower case)
+    private static final Set<String> _HOP_BY_HOP = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade", "host", "content-length",
+            ROLE_HEADER.toLowerCase()));
+
+    private final ServerSocket _socket;
+    private final ExecutorService _executor;
+    private final Random _random;
+    private final Map<FeedRole, Faults> _faults;
+    private final Faults _defaultFaults;
+
+    private FaultProxy() throws IOException {
+        _socket = new ServerSocket(Integer.getInteger(_PORT_PROPERTY, 0), 50, InetAddress.getByName("localhost"));
+        _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int _count;
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "sdshare-proxy-" + _count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Long seed = Long.getLong(_SEED_PROPERTY);
+        _random = seed != null ? new Random(seed) : new Random();
+        _defaultFaults = new Faults(null);
+        _faults = new EnumMap<FeedRole, Faults>(FeedRole.class);
+        for (FeedRole role: FeedRole.values()) {
+            _faults.put(role, new Faults(role));
+        }
+    }
+
+    /**
+     * Starts a proxy which accepts connections until the JVM exits.
+     *
+     * @return The proxy.
+     * @throws IOException If the proxy cannot listen.
+     */
+    public static FaultProxy start() throws IOException {
+        final FaultProxy proxy = new FaultProxy();
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                proxy.accept();
+            }
+        }, "sdshare-proxy-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Fault proxy listening on " + proxy._socket.getLocalSocketAddress());
+        return proxy;
+    }
+
+    /**
+     * Returns the proxy to pass to {@link java.net.URL#openConnection(Proxy)}.
+     *
+     * @return The proxy.
+     */
+    public Proxy asProxy() {
+        return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(_socket.getInetAddress(), _socket.getLocalPort()));
+    }
+
+    private void accept() {
+        while (!_socket.isClosed()) {
+            try {
+                final Socket client = _socket.accept();
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            }
+            catch (IOException ex) {
+                LOG.error("Fault proxy cannot accept connections", ex);
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            final InputStream in = new BufferedInputStream(client.getInputStream());
+            final OutputStream out = new BufferedOutputStream(client.getOutputStream(), 1 << 16);
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                if (!handle(request, client, out)) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedIOException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex) {
+            // The client has gone, i.e. after a timeout
+        }
+        finally {
+            try {
+                client.close();
+            }
+            catch (IOException ex) {
+                // noop.
+            }
+        }
+    }
+
+    /**
+     * Answers one request.
+     *
+     * @return <tt>true</tt> if the connection can be used for the next request.
+     */
+    private boolean handle(final Request request, final Socket client, final OutputStream out) throws IOException {
+        final Faults faults = faultsFor(request.headers.get(ROLE_HEADER.toLowerCase()));
+        final URI uri;
+        try {
+            uri = URI.create(request.target);
+        }
+        catch (IllegalArgumentException ex) {
+            writeStatus(out, 400, "Bad Request", 0);
+            return false;
+        }
+        if (!uri.isAbsolute() || !("GET".equals(request.method) || "HEAD".equals(request.method))) {
+            writeStatus(out, 501, "Not Implemented", 0);
+            return false;
+        }
+        sleep(faults.latency + (faults.jitter > 0 ? (long) (_random.nextDouble() * faults.jitter) : 0));
+        if (_random.nextDouble() < faults.stall) {
+            EventLog.info(FaultProxy.class, uri, "Stalling " + faults.stallMillis + " ms");
+            sleep(faults.stallMillis);
+        }
+        if (_random.nextDouble() < faults.error) {
+            EventLog.info(FaultProxy.class, uri, "Injected 503");
+            writeStatus(out, 503, "Service Unavailable", 1);
+            return true;
+        }
+        final HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection(Proxy.NO_PROXY);
+        conn.setInstanceFollowRedirects(false);
+        conn.setRequestMethod(request.method);
+        for (Map.Entry<String, String> header: request.headers.entrySet()) {
+            if (!_HOP_BY_HOP.contains(header.getKey())) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        final int status;
+        final InputStream upstream;
+        try {
+            status = conn.getResponseCode();
+            upstream = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+        }
+        catch (IOException ex) {
+            EventLog.warning(FaultProxy.class, uri, "Cannot forward the request: " + ex.getMessage());
+            writeStatus(out, 502, "Bad Gateway", 0);
+            return true;
+        }
+        final long length = contentLength(conn);
+        final boolean hasBody = !"HEAD".equals(request.method) && status >= 200
+                && status != HttpURLConnection.HTTP_NO_CONTENT && status != HttpURLConnection.HTTP_NOT_MODIFIED;
+        final boolean chunked = hasBody && upstream != null && length < 0;
+        final StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(conn.getResponseMessage() != null ? conn.getResponseMessage() : "").append("\r\n");
+        for (Map.Entry<String, List<String>> header: conn.getHeaderFields().entrySet()) {
+            if (header.getKey() == null || _HOP_BY_HOP.contains(header.getKey().toLowerCase())) {
+                continue;
+            }
+            for (String value: header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        else if (length >= 0 || hasBody) {
+            // Without an upstream body, the length is 0 unless the response to a HEAD request names it
+            head.append("Content-Length: ").append(upstream == null && hasBody ? 0 : Math.max(0, length)).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("iso-8859-1"));
+        if (upstream == null) {
+            out.flush();
+            return true;
+        }
+        final boolean reset = hasBody && length != 0 && _random.nextDouble() < faults.reset;
+        long written = 0;
+        try {
+            if (hasBody) {
+                // Resets after half of the body or after 8 KiB if the length is unknown
+                written = copy(upstream, out, reset ? (length > 0 ? length / 2 : 1 << 13) : length, faults.bandwidth, chunked);
+            }
+            if (chunked && !reset) {
+                out.write("0\r\n\r\n".getBytes("iso-8859-1"));
+            }
+            out.flush();
+        }
+        catch (IOException ex) {
+            EventLog.warning(FaultProxy.class, uri, "Cannot forward the body after " + written + " bytes: " + ex.getMessage());
+            return false;
+        }
+        finally {
+            upstream.close();
+        }
+        if (reset) {
+            EventLog.info(FaultProxy.class, uri, "Reset the connection after " + written
+                    + (length >= 0 ? " of " + length : "") + " bytes");
+            // Closing with a linger timeout of 0 sends a RST instead of a FIN
+            client.setSoLinger(true, 0);
+            client.close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the <tt>Content-Length</tt> of the upstream response or -1 if
+     * the length is unknown, i.e. if the body is chunked.
+     */
+    private static long contentLength(final HttpURLConnection conn) {
+        final String value = conn.getHeaderField("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the faults of the named role; the faults without a role if
+     * the name is missing or unknown.
+     */
+    private Faults faultsFor(final String roleName) {
+        if (roleName == null) {
+            return _defaultFaults;
+        }
+        try {
+            return _faults.get(FeedRole.valueOf(roleName.trim()));
+        }
+        catch (IllegalArgumentException ex) {
+            return _defaultFaults;
+        }
+    }
+
+    private static void writeStatus(final OutputStream out, final int status, final String reason, final int retryAfter) throws IOException {
+        out.write(("HTTP/1.1 " + status + ' ' + reason + "\r\n"
+                + (retryAfter > 0 ? "Retry-After: " + retryAfter + "\r\n" : "")
+                + "Content-Length: 0\r\n\r\n").getBytes("iso-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * Copies <tt>length</tt> bytes, all bytes if <tt>length</tt> is
+     * negative, as they arrive and sleeps between the chunks to keep the
+     * provided bandwidth. If <tt>chunked</tt> is <tt>true</tt>, each chunk
+     * is written with the chunked transfer coding; the last chunk is left
+     * to the caller.
+     *
+     * @return The number of copied bytes.
+     */
+    private static long copy(final InputStream in, final OutputStream out, final long length, final long bandwidth,
+            final boolean chunked) throws IOException {
+        final byte[] buff = new byte[bandwidth > 0 ? (int) Math.max(1, Math.min(1 << 13, bandwidth / 10)) : 1 << 13];
+        final long start = System.nanoTime();
+        long written = 0;
+        while (length < 0 || written < length) {
+            final int read = in.read(buff, 0, length < 0 ? buff.length : (int) Math.min(buff.length, length - written));
+            if (read < 0) {
+                break;
+            }
+            if (chunked) {
+                out.write((Integer.toHexString(read) + "\r\n").getBytes("iso-8859-1"));
+            }
+            out.write(buff, 0, read);
+            if (chunked) {
+                out.write('\r');
+                out.write('\n');
+            }
+            written += read;
+            // Passes the bytes on as soon as the server pauses
+            if (bandwidth > 0 || in.available() == 0) {
+                out.flush();
+            }
+            if (bandwidth > 0) {
+                sleep((start + written * 1000000000L / bandwidth - System.nanoTime()) / 1000000);
+            }
+        }
+        return written;
+    }
+
+    private static void sleep(final long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+
+
+    /**
+     * The faults of a role.
+     */
+    private static final class Faults {
+
+        final long latency;
+        final long jitter;
+        final long bandwidth;
+        final double error;
+        final double stall;
+        final long stallMillis;
+        final double reset;
+
+        Faults(final FeedRole role) {
+            latency = Long.parseLong(setting(role, "latency", "0"));
+            jitter = Long.parseLong(setting(role, "jitter", "0"));
+            bandwidth = Long.parseLong(setting(role, "bandwidth", "0"));
+            error = Double.parseDouble(setting(role, "error", "0"));
+            stall = Double.parseDouble(setting(role, "stall", "0"));
+            stallMillis = Long.parseLong(setting(role, "stallmillis", "60000"));
+            reset = Double.parseDouble(setting(role, "reset", "0"));
+        }
+
+        private static String setting(final FeedRole role, final String name, final String defaultValue) {
+            final String value = role != null ? System.getProperty(_PREFIX + role.label() + '.' + name) : null;
+            return value != null ? value : System.getProperty(_PREFIX + name, defaultValue);
+        }
+    }
+
+
+    /**
+     * A request line and its headers; the header names are lower case.
+     */
+    private static final class Request {
+
+        final String method;
+        final String target;
+        final Map<String, String> headers;
+
+        private Request(final String method, final String target, final Map<String, String> headers) {
+            this.method = method;
+            this.target = target;
+            this.headers = headers;
+        }
+
+        /**
+         * Reads the next request.
+         *
+         * @return The request or <tt>null</tt> if the client closed the connection.
+         */
+        static Request read(final InputStream in) throws IOException {
+            String line = readLine(in);
+            while (line != null && line.length() == 0) {
+                line = readLine(in);
+            }
+            if (line == null) {
+                return null;
+            }
+            final String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                throw new SocketException("Malformed request line: " + line);
+            }
+            final Map<String, String> headers = new LinkedHashMap<String, String>();
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            return new Request(parts[0], parts[1], headers);
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return line.size() > 0 ? line.toString("iso-8859-1") : null;
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            return line.toString("iso-8859-1");
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nu.xom.Document;
+import nu.xom.Nodes;
+
+import org.sdshare.sdsharetests.IConstants;
+
+/**
+ * The feeds reachable from the overview feed: the overview feed, the
+ * collection feeds, the snapshots feeds and the pages of the fragments feeds.
+ * <p>
+ * The graph is discovered once and can be replayed as often as needed,
+ * i.e. for load tests which should not include the discovery cost.
+ * </p>
+ */
+final class FeedGraph implements IConstants {
+
+    private static final String _ATOM_LINK = "[not(@type) or @type='" + MEDIA_TYPE_ATOM_XML + "']";
+
+    private final List<Node> _nodes;
+
+    private FeedGraph(final List<Node> nodes) {
+        _nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Discovers the feed graph of the server under test.
+     *
+     * @param maxPages The max. number of pages per fragments feed, <tt>0</tt> for all pages.
+     * @return The feed graph.
+     * @throws Exception In case of an error.
+     */
+    public static FeedGraph discover(final int maxPages) throws Exception {
+        final List<Node> nodes = new ArrayList<Node>();
+        final URI overview = Utils.getServerAddress();
+        nodes.add(new Node(overview, FeedRole.OVERVIEW_FEED));
+        final Document overviewFeed = Utils.fetchFeed(overview, FeedRole.OVERVIEW_FEED);
+        for (URI collection: links(overviewFeed, REL_COLLECTION_FEED)) {
+            nodes.add(new Node(collection, FeedRole.COLLECTION_FEED));
+            final Document collectionFeed = Utils.fetchFeed(collection, FeedRole.COLLECTION_FEED);
+            for (URI snapshots: links(collectionFeed, REL_SNAPSHOTS_FEED)) {
+                nodes.add(new Node(snapshots, FeedRole.SNAPSHOTS_FEED));
+            }
+            for (URI fragments: links(collectionFeed, REL_FRAGMENTS_FEED)) {
+                final PagingChecker checker = new PagingChecker();
+                URI page = fragments;
+                while (page != null && (maxPages == 0 || checker.getPageCount() < maxPages)
+                        && checker.visitPage(page)) {
+                    nodes.add(new Node(page, FeedRole.FRAGMENTS_FEED));
+                    page = Utils.nextPageURI(Utils.fetchFeed(page, FeedRole.FRAGMENTS_FEED));
+                }
+            }
+        }
+        return new FeedGraph(nodes);
+    }
+
+    private static List<URI> links(final Document feed, final String rel) {
+        final Nodes links = feed.query("atom:feed/atom:entry/atom:link[@rel='" + rel + "']" + _ATOM_LINK, Utils.getDefaultXPathContext());
+        return new ArrayList<URI>(Utils.linksToURIs(feed.getBaseURI(), links));
+    }
+
+    /**
+     * Returns the nodes in traversal order.
+     *
+     * @return An immutable list of nodes.
+     */
+    public List<Node> getNodes() {
+        return _nodes;
+    }
+
+    /**
+     * Returns the number of nodes.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return _nodes.size();
+    }
+
+
+    /**
+     * A feed (page) within the graph.
+     */
+    static final class Node {
+
+        private final URI _uri;
+        private final FeedRole _role;
+
+        Node(final URI uri, final FeedRole role) {
+            _uri = uri;
+            _role = role;
+        }
+
+        public URI getURI() {
+            return _uri;
+        }
+
+        public FeedRole getRole() {
+            return _role;
+        }
+
+        /**
+         * Retrieves this feed.
+         *
+         * @return The exchange, to be closed by the caller.
+         * @throws IOException In case of an error.
+         */
+        public Exchange fetch() throws IOException {
+            return Utils.fetch(_uri, _role, MEDIA_TYPE_ATOM_XML);
+        }
+    }
+
+}
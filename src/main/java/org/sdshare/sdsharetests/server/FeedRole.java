@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import org.sdshare.sdsharetests.IConstants;
+
+/**
+ * The role of a resource within the SDShare feed graph.
+ */
+enum FeedRole {
+
+    OVERVIEW_FEED,
+    COLLECTION_FEED,
+    SNAPSHOTS_FEED,
+    FRAGMENTS_FEED,
+    SNAPSHOT,
+    FRAGMENT;
+
+    /**
+     * Returns the role of the resource a link with the provided relation points to.
+     *
+     * @param rel The value of the link's <tt>rel</tt> attribute.
+     * @return The role.
+     * @throws IllegalArgumentException If the relation is unknown.
+     */
+    public static FeedRole forRelation(final String rel) {
+        if (IConstants.REL_COLLECTION_FEED.equals(rel)) {
+            return COLLECTION_FEED;
+        }
+        if (IConstants.REL_SNAPSHOTS_FEED.equals(rel)) {
+            return SNAPSHOTS_FEED;
+        }
+        if (IConstants.REL_FRAGMENTS_FEED.equals(rel)) {
+            return FRAGMENTS_FEED;
+        }
+        if (IConstants.REL_SNAPSHOT.equals(rel)) {
+            return SNAPSHOT;
+        }
+        if (IConstants.REL_FRAGMENT.equals(rel)) {
+            return FRAGMENT;
+        }
+        throw new IllegalArgumentException("Unknown link relation: " + rel);
+    }
+
+    /**
+     * Returns a lower case name suitable for reports, i.e. <tt>fragments_feed</tt>.
+     *
+     * @return The name of this role.
+     */
+    public String label() {
+        return name().toLowerCase();
+    }
+
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only archive of HTTP exchanges.
+ * <p>
+ * In recording mode each exchange is appended to the archive file. In replay
+ * mode the archive is indexed once and requests are answered from the file
+ * without any network access. If the same request was recorded several times
+ * (i.e. a feed which changed between two runs), the responses are replayed in
+ * the recorded order and the last one is repeated afterwards.
+ * </p>
+ * <p>
+ * A run which is killed while it records may leave a truncated last
+ * record. It is ignored when the archive is replayed and removed before
+ * further records are appended. Each record is written with a single
+ * write of its headers followed by its body; if the body cannot be
+ * written, the partial record is removed.
+ * </p>
+ * <p>
+ * Record layout (all integers big-endian, strings as int length followed
+ * by the UTF-8 bytes):
+ * <pre>
+ *   int     magic
+ *   String  request IRI
+ *   int     number of request headers, followed by name/value pairs
+ *   int     status code
+ *   int     number of response headers, followed by name/value pairs
+ *   long    body length, followed by the body
+ * </pre>
+ * </p>
+ */
+final class HttpArchive {
+
+    /**
+     * The property name of the file where all HTTP exchanges are recorded to.
+     */
+    static final String RECORD_PROPERTY = "org.sdshare.record";
+
+    /**
+     * The property name of the file from which all HTTP exchanges are
+     * replayed (instead of contacting the server).
+     */
+    static final String REPLAY_PROPERTY = "org.sdshare.replay";
+
+    private static final int _MAGIC = 0x53445332; // "SDS2"
+    // Older records with an int body length, still replayed
+    private static final int _MAGIC_INT_LENGTH = 0x53445348; // "SDSH"
+    // Upper bound of an IRI or a header, longer strings indicate a corrupt archive
+    private static final int _MAX_STRING_LENGTH = 1 << 24;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpArchive.class);
+
+    private final File _file;
+    private final FileOutputStream _out;
+    private final FileChannel _channel;
+    private final Map<String, List<Long>> _index;
+    private final Map<String, Integer> _replayed;
+
+    private HttpArchive(final File file, final FileOutputStream out, final FileChannel channel, final Map<String, List<Long>> index) {
+        _file = file;
+        _out = out;
+        _channel = channel;
+        _index = index;
+        _replayed = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Opens an archive for recording. Existing records are kept, a
+     * truncated last record is removed.
+     *
+     * @param file The archive file.
+     * @return An archive in recording mode.
+     * @throws IOException In case of an error.
+     */
+    public static HttpArchive forRecording(final File file) throws IOException {
+        if (file.exists()) {
+            final long complete = scan(file, null);
+            if (complete < file.length()) {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(complete);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+        }
+        final FileOutputStream out = new FileOutputStream(file, true);
+        final HttpArchive archive = new HttpArchive(file, out, null, null);
+        Runtime.getRuntime().addShutdownHook(new Thread("sdshare-archive-close") {
+            @Override
+            public void run() {
+                archive.close();
+            }
+        });
+        return archive;
+    }
+
+    /**
+     * Opens an archive for replaying.
+     *
+     * @param file The archive file.
+     * @return An archive in replay mode.
+     * @throws IOException In case of an error.
+     */
+    public static HttpArchive forReplay(final File file) throws IOException {
+        final Map<String, List<Long>> index = new HashMap<String, List<Long>>();
+        scan(file, index);
+        return new HttpArchive(file, null, new RandomAccessFile(file, "r").getChannel(), index);
+    }
+
+    /**
+     * Returns if this archive replays exchanges.
+     *
+     * @return <tt>true</tt> if in replay mode, <tt>false</tt> if in recording mode.
+     */
+    public boolean isReplaying() {
+        return _channel != null;
+    }
+
+    /**
+     * Appends the provided exchange.
+     *
+     * @param exchange The exchange to record.
+     * @throws IOException In case of an error.
+     */
+    public synchronized void record(final Exchange exchange) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream(1024);
+        final DataOutputStream head = new DataOutputStream(buff);
+        head.writeInt(_MAGIC);
+        writeString(head, exchange.getURI().toString());
+        head.writeInt(exchange.getRequestHeaders().size());
+        for (Map.Entry<String, String> header: exchange.getRequestHeaders().entrySet()) {
+            writeString(head, header.getKey());
+            writeString(head, header.getValue());
+        }
+        head.writeInt(exchange.getStatus());
+        int count = 0;
+        for (Map.Entry<String, List<String>> header: exchange.getHeaders().entrySet()) {
+            if (header.getKey() != null) {
+                count += header.getValue().size();
+            }
+        }
+        head.writeInt(count);
+        for (Map.Entry<String, List<String>> header: exchange.getHeaders().entrySet()) {
+            if (header.getKey() == null) {
+                // Status line
+                continue;
+            }
+            for (String value: header.getValue()) {
+                writeString(head, header.getKey());
+                writeString(head, value);
+            }
+        }
+        // Spooled bodies may exceed 2 GiB
+        head.writeLong(exchange.getBodyLength());
+        final long start = _out.getChannel().size();
+        try {
+            buff.writeTo(_out);
+            final InputStream body = exchange.openBody();
+            try {
+                final byte[] chunk = new byte[1 << 16];
+                int len;
+                while ((len = body.read(chunk)) != -1) {
+                    _out.write(chunk, 0, len);
+                }
+            }
+            finally {
+                body.close();
+            }
+        }
+        catch (IOException ex) {
+            // Removes the partial record, so the archive stays readable
+            _out.getChannel().truncate(start);
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the recorded response to the provided request.
+     *
+     * @param uri The request IRI.
+     * @param role The role of the requested resource.
+     * @param requestHeaders The request headers.
+     * @return The exchange.
+     * @throws IOException If no response was recorded or in case of an error.
+     */
+    public Exchange replay(final URI uri, final FeedRole role, final Map<String, String> requestHeaders) throws IOException {
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final String key = key(uri, requestHeaders);
+        final List<Long> offsets = _index.get(key);
+        if (offsets == null) {
+            throw new IOException("No response for " + uri + " " + requestHeaders + " recorded in " + _file);
+        }
+        final long offset;
+        synchronized (_replayed) {
+            final Integer n = _replayed.get(key);
+            final int next = n == null ? 0 : Math.min(n + 1, offsets.size() - 1);
+            _replayed.put(key, next);
+            offset = offsets.get(next);
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new ChannelInputStream(_channel, offset), 1 << 16));
+        final int magic = in.readInt();
+        readString(in);
+        readRequestHeaders(in);
+        final int status = in.readInt();
+        final Map<String, List<String>> headers = readResponseHeaders(in);
+        final long headerNanos = System.nanoTime() - start;
+        final Body body = Body.read(in, readBodyLength(in, magic));
+        return new Exchange(uri, role, requestHeaders, status, headers, body,
+                startMillis, headerNanos, System.nanoTime() - start);
+    }
+
+    /**
+     * Flushes and closes the archive.
+     */
+    public synchronized void close() {
+        try {
+            if (_out != null) {
+                _out.close();
+            }
+            if (_channel != null) {
+                _channel.close();
+            }
+        }
+        catch (IOException ex) {
+            // noop.
+        }
+    }
+
+    /**
+     * Reads the records of the provided archive and returns the length of
+     * the complete records; a truncated last record is ignored.
+     *
+     * @param file The archive file.
+     * @param index The map to add the request keys and offsets to or <tt>null</tt>.
+     * @return The number of bytes of the complete records.
+     * @throws IOException If the archive is corrupt or in case of an error.
+     */
+    private static long scan(final File file, final Map<String, List<Long>> index) throws IOException {
+        final long length = file.length();
+        final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        final DataInputStream in = new DataInputStream(counter);
+        long complete = 0;
+        try {
+            while (complete < length) {
+                final long offset = counter.getCount();
+                final String key;
+                try {
+                    final int magic = in.readInt();
+                    if (magic != _MAGIC && magic != _MAGIC_INT_LENGTH) {
+                        throw new IOException("Corrupt archive " + file + " at offset " + offset);
+                    }
+                    key = key(URI.create(readString(in)), readRequestHeaders(in));
+                    in.readInt();
+                    readResponseHeaders(in);
+                    skipFully(in, readBodyLength(in, magic));
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+                // A file stream skips beyond the end of the file
+                if (counter.getCount() > length) {
+                    break;
+                }
+                if (index != null) {
+                    List<Long> offsets = index.get(key);
+                    if (offsets == null) {
+                        offsets = new ArrayList<Long>(1);
+                        index.put(key, offsets);
+                    }
+                    offsets.add(offset);
+                }
+                complete = counter.getCount();
+            }
+        }
+        finally {
+            in.close();
+        }
+        if (complete < length) {
+            LOG.warn("Ignoring the truncated last record of " + file + " at offset " + complete);
+        }
+        return complete;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes("utf-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > _MAX_STRING_LENGTH) {
+            throw new IOException("Corrupt archive: invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "utf-8");
+    }
+
+    private static String key(final URI uri, final Map<String, String> requestHeaders) {
+        final StringBuilder buff = new StringBuilder(uri.toString());
+        for (Map.Entry<String, String> header: new TreeMap<String, String>(requestHeaders).entrySet()) {
+            buff.append('\n')
+                .append(header.getKey().toLowerCase())
+                .append(':')
+                .append(header.getValue());
+        }
+        return buff.toString();
+    }
+
+    private static Map<String, String> readRequestHeaders(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final Map<String, String> result = new LinkedHashMap<String, String>(count);
+        for (int i=0; i<count; i++) {
+            result.put(readString(in), readString(in));
+        }
+        return result;
+    }
+
+    private static Map<String, List<String>> readResponseHeaders(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final Map<String, List<String>> result = new LinkedHashMap<String, List<String>>(count);
+        for (int i=0; i<count; i++) {
+            final String name = readString(in);
+            List<String> values = result.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                result.put(name, values);
+            }
+            values.add(readString(in));
+        }
+        for (Map.Entry<String, List<String>> header: result.entrySet()) {
+            header.setValue(Collections.unmodifiableList(header.getValue()));
+        }
+        return result;
+    }
+
+    private static long readBodyLength(final DataInputStream in, final int magic) throws IOException {
+        return magic == _MAGIC_INT_LENGTH ? in.readInt() : in.readLong();
+    }
+
+    private static void skipFully(final InputStream in, long n) throws IOException {
+        while (n > 0) {
+            final long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+
+    /**
+     * Reads from a file channel at a position without changing the channel's
+     * position, so several threads can read concurrently.
+     */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel _channel;
+        private long _position;
+
+        ChannelInputStream(final FileChannel channel, final long position) {
+            _channel = channel;
+            _position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = _channel.read(ByteBuffer.wrap(b, off, len), _position);
+            if (n > 0) {
+                _position += n;
+            }
+            return n;
+        }
+    }
+
+
+    /**
+     * Counts the number of bytes read.
+     */
+    private static final class CountingInputStream extends InputStream {
+
+        private final InputStream _in;
+        private long _count;
+
+        CountingInputStream(final InputStream in) {
+            _in = in;
+        }
+
+        long getCount() {
+            return _count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = _in.read();
+            if (b != -1) {
+                _count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = _in.read(b, off, len);
+            if (n > 0) {
+                _count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = _in.skip(n);
+            _count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.net.URI;
+
+/**
+ * Receives notifications about the HTTP exchanges executed by {@link Utils#fetch}.
+ * <p>
+ * Listeners are called from the thread which executed the request and
+ * must be thread-safe.
+ * </p>
+ */
+interface IExchangeListener {
+
+    /**
+     * Called after a response was received completely.
+     *
+     * @param exchange The exchange.
+     */
+    void exchangeCompleted(Exchange exchange);
+
+    /**
+     * Called if a request could not be completed, i.e. due to a
+     * connection failure.
+     *
+     * @param uri The request IRI.
+     * @param role The role of the requested resource.
+     * @param ex The error.
+     */
+    void exchangeFailed(URI uri, FeedRole role, Exception ex);
+
+}
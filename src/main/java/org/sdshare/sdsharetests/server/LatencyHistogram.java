@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies in microseconds.
+ * <p>
+ * Values below 64 are counted exactly, larger values are counted in
+ * 32 buckets per power of two, so percentiles are accurate to about 3%.
+ * Recording is lock-free and allocation-free, the histogram has a fixed
+ * size of about 15 KiB regardless of the number of values.
+ * </p>
+ */
+final class LatencyHistogram {
+
+    private static final int _SUB_BUCKETS = 32;
+    private static final int _BUCKETS = 64 + 57 * _SUB_BUCKETS;
+
+    private final AtomicLongArray _counts;
+    private final AtomicLong _count;
+    private final AtomicLong _sum;
+    private final AtomicLong _max;
+
+    public LatencyHistogram() {
+        _counts = new AtomicLongArray(_BUCKETS);
+        _count = new AtomicLong();
+        _sum = new AtomicLong();
+        _max = new AtomicLong();
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordNanos(final long nanos) {
+        record(nanos / 1000);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds.
+     */
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        _counts.incrementAndGet(index(value));
+        _count.incrementAndGet();
+        _sum.addAndGet(value);
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Adds all values of the other histogram to this histogram.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i=0; i<_BUCKETS; i++) {
+            final long n = other._counts.get(i);
+            if (n != 0) {
+                _counts.addAndGet(i, n);
+            }
+        }
+        _count.addAndGet(other._count.get());
+        _sum.addAndGet(other._sum.get());
+        final long value = other._max.get();
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+        return _count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return The sum in microseconds.
+     */
+    public long getSum() {
+        return _sum.get();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The max. value in microseconds.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Returns the arithmetic mean.
+     *
+     * @return The mean in microseconds or <tt>0</tt> if no value was recorded.
+     */
+    public double getMean() {
+        final long count = _count.get();
+        return count == 0 ? 0 : _sum.get() / (double) count;
+    }
+
+    /**
+     * Returns the value at the provided percentile.
+     *
+     * @param percentile The percentile, i.e. <tt>99.9</tt>.
+     * @return The (upper bound of the bucket of the) value in microseconds
+     *          or <tt>0</tt> if no value was recorded.
+     */
+    public long getPercentile(final double percentile) {
+        final long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i=0; i<_BUCKETS; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * Returns the number of recorded values less than or equal to the provided value.
+     * <p>
+     * Values in the same bucket as the provided value are counted as well,
+     * so the result is accurate to the bucket resolution.
+     * </p>
+     *
+     * @param micros The upper bound in microseconds.
+     * @return The number of values.
+     */
+    public long getCountAtOrBelow(final long micros) {
+        if (micros < 0) {
+            return 0;
+        }
+        final int idx = index(micros);
+        long result = 0;
+        for (int i=0; i<=idx; i++) {
+            result += _counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void reset() {
+        for (int i=0; i<_BUCKETS; i++) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+
+    private static int index(final long value) {
+        if (value < 64) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return _SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    private static long upperBound(final int index) {
+        if (index < 64) {
+            return index;
+        }
+        final int shift = index / _SUB_BUCKETS - 1;
+        final long mantissa = index - _SUB_BUCKETS * shift;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+/**
+ * Open addressing set of primitive <tt>long</tt> values.
+ * <p>
+ * Each entry occupies a single slot of a <tt>long[]</tt> (8 bytes) and
+ * no per-entry objects are created, so millions of entries can be kept
+ * without boxing overhead.
+ * </p>
+ */
+final class LongHashSet {
+
+    private static final int _DEFAULT_CAPACITY = 1024;
+    private static final int _MAX_CAPACITY = 1 << 30;
+
+    // Marks an empty slot; the value itself is stored out of band
+    private static final long _EMPTY = 0L;
+
+    private long[] _table;
+    private int _mask;
+    private int _size;
+    private int _threshold;
+    private boolean _containsEmpty;
+
+    public LongHashSet() {
+        this(_DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a set which can hold at least {@code expected} entries
+     * before it has to grow.
+     *
+     * @param expected The expected number of entries.
+     */
+    public LongHashSet(final int expected) {
+        if (expected < 0) {
+            throw new IllegalArgumentException("The expected size must not be negative");
+        }
+        int capacity = 16;
+        while (threshold(capacity) < expected && capacity < _MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Adds the provided value.
+     *
+     * @param value The value to add.
+     * @return <tt>true</tt> if the value was not part of this set, otherwise <tt>false</tt>.
+     */
+    public boolean add(final long value) {
+        if (value == _EMPTY) {
+            if (_containsEmpty) {
+                return false;
+            }
+            _containsEmpty = true;
+            _size++;
+            return true;
+        }
+        int idx = index(value);
+        while (_table[idx] != _EMPTY) {
+            if (_table[idx] == value) {
+                return false;
+            }
+            idx = (idx + 1) & _mask;
+        }
+        _table[idx] = value;
+        if (++_size > _threshold) {
+            rehash();
+        }
+        return true;
+    }
+
+    /**
+     * Returns if the provided value is part of this set.
+     *
+     * @param value The value to check.
+     * @return <tt>true</tt> if the value is part of this set, otherwise <tt>false</tt>.
+     */
+    public boolean contains(final long value) {
+        if (value == _EMPTY) {
+            return _containsEmpty;
+        }
+        int idx = index(value);
+        while (_table[idx] != _EMPTY) {
+            if (_table[idx] == value) {
+                return true;
+            }
+            idx = (idx + 1) & _mask;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The size of this set.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Returns a 64 bit fingerprint of the provided string.
+     * <p>
+     * FNV-1a over the UTF-16 code units followed by the MurmurHash3 finalizer
+     * to spread the bits. Two different strings collide with a probability of
+     * about 2<sup>-64</sup>, which is negligible even for collections with
+     * hundreds of millions of resources.
+     * </p>
+     *
+     * @param value The string to hash.
+     * @return The fingerprint.
+     */
+    public static long fingerprint(final CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int index(final long value) {
+        return (int) mix(value) & _mask;
+    }
+
+    private void allocate(final int capacity) {
+        _table = new long[capacity];
+        _mask = capacity - 1;
+        _threshold = threshold(capacity);
+    }
+
+    // Computed as long, 3/4 of 2^30 slots overflows an int
+    private static int threshold(final int capacity) {
+        return (int) ((long) capacity * 3 / 4);
+    }
+
+    private void rehash() {
+        final long[] old = _table;
+        if (old.length == _MAX_CAPACITY) {
+            throw new IllegalStateException("The set cannot hold more than " + _size + " entries");
+        }
+        allocate(old.length << 1);
+        for (long value: old) {
+            if (value == _EMPTY) {
+                continue;
+            }
+            int idx = index(value);
+            while (_table[idx] != _EMPTY) {
+                idx = (idx + 1) & _mask;
+            }
+            _table[idx] = value;
+        }
+    }
+
+}
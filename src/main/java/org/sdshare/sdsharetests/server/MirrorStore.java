@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal embedded key/value store: an append-only log file with an
+ * in-memory index of the latest record per key.
+ * <p>
+ * Records are written in batches; each batch is a single write followed by
+ * one <tt>fsync</tt>, so the cost of durability is paid once per batch
+ * instead of once per record. Opening an existing file replays the log.
+ * </p>
+ * <p>
+ * Record layout: key length (int), key (UTF-8), value length (int), value.
+ * </p>
+ */
+final class MirrorStore {
+
+    private final File _file;
+    private final RandomAccessFile _raf;
+    private final FileChannel _channel;
+    // Key -> {offset of the value, length of the value}
+    private final Map<String, long[]> _index;
+    private long _size;
+    private long _batches;
+    private long _records;
+
+    /**
+     * Opens the store in the provided file, the file is created if it does
+     * not exist.
+     *
+     * @param file The log file.
+     * @throws IOException In case of an error.
+     */
+    public MirrorStore(final File file) throws IOException {
+        _file = file;
+        _index = new HashMap<String, long[]>();
+        if (file.exists()) {
+            replay();
+        }
+        _raf = new RandomAccessFile(file, "rw");
+        _channel = _raf.getChannel();
+        // Cut a partially written batch off
+        _channel.truncate(_size);
+    }
+
+    private void replay() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), 1 << 16));
+        try {
+            while (true) {
+                final byte[] key;
+                final int valueLength;
+                try {
+                    key = new byte[in.readInt()];
+                    in.readFully(key);
+                    valueLength = in.readInt();
+                    if (in.skipBytes(valueLength) != valueLength) {
+                        break;
+                    }
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+                final long offset = _size + 4 + key.length + 4;
+                _index.put(new String(key, "utf-8"), new long[] {offset, valueLength});
+                _size = offset + valueLength;
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the records and forces them to disk.
+     *
+     * @param batch The records; later records overwrite earlier ones with the same key.
+     * @throws IOException In case of an error.
+     */
+    public synchronized void write(final List<Record> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final byte[][] keys = new byte[batch.size()][];
+        int length = 0;
+        for (int i=0; i<batch.size(); i++) {
+            keys[i] = batch.get(i).key.getBytes("utf-8");
+            length += 8 + keys[i].length + batch.get(i).value.length;
+        }
+        final ByteBuffer buff = ByteBuffer.allocate(length);
+        for (int i=0; i<batch.size(); i++) {
+            final byte[] value = batch.get(i).value;
+            buff.putInt(keys[i].length).put(keys[i]).putInt(value.length);
+            _index.put(batch.get(i).key, new long[] {_size + buff.position(), value.length});
+            buff.put(value);
+        }
+        buff.flip();
+        long pos = _size;
+        while (buff.hasRemaining()) {
+            pos += _channel.write(buff, pos);
+        }
+        _channel.force(false);
+        _size = pos;
+        _batches++;
+        _records += batch.size();
+    }
+
+    /**
+     * Returns the latest value of the provided key.
+     *
+     * @param key The key.
+     * @return The value or <tt>null</tt> if the key is unknown.
+     * @throws IOException In case of an error.
+     */
+    public synchronized byte[] read(final String key) throws IOException {
+        final long[] location = _index.get(key);
+        if (location == null) {
+            return null;
+        }
+        final ByteBuffer buff = ByteBuffer.allocate((int) location[1]);
+        while (buff.hasRemaining()) {
+            if (_channel.read(buff, location[0] + buff.position()) < 0) {
+                throw new EOFException("Unexpected end of " + _file);
+            }
+        }
+        return buff.array();
+    }
+
+    /**
+     * Returns the number of keys.
+     *
+     * @return The number of distinct keys.
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     * Returns the number of records written since the store was opened.
+     *
+     * @return The number of records.
+     */
+    public synchronized long getRecordCount() {
+        return _records;
+    }
+
+    /**
+     * Returns the number of batches written since the store was opened.
+     *
+     * @return The number of batches.
+     */
+    public synchronized long getBatchCount() {
+        return _batches;
+    }
+
+    /**
+     * Returns the size of the log file.
+     *
+     * @return The number of bytes.
+     */
+    public synchronized long length() {
+        return _size;
+    }
+
+    /**
+     * Closes the store.
+     *
+     * @param delete <tt>true</tt> to delete the log file.
+     * @throws IOException In case of an error.
+     */
+    public synchronized void close(final boolean delete) throws IOException {
+        _raf.close();
+        if (delete && !_file.delete()) {
+            _file.deleteOnExit();
+        }
+    }
+
+
+    /**
+     * A key and its value.
+     */
+    static final class Record {
+
+        final String key;
+        final byte[] value;
+
+        Record(final String key, final byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+}
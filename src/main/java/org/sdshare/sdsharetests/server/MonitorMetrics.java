@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * Collects latency histograms, error counters and conformance results and
+ * renders them in the Prometheus text exposition format.
+ * <p>
+ * Request metrics are updated continuously by {@link IExchangeListener}
+ * callbacks, the conformance gauges are replaced at the end of each test run.
+ * </p>
+ */
+final class MonitorMetrics extends RunListener implements IExchangeListener {
+
+    // Histogram bucket boundaries in seconds
+    private static final double[] _BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final Map<FeedRole, LatencyHistogram> _latency;
+    private final Map<FeedRole, AtomicLong> _bytes;
+    private final Map<FeedRole, AtomicLong> _errors;
+    private final AtomicLong _runs;
+
+    // Current run, only accessed by the JUnit thread
+    private Map<String, long[]> _current;
+
+    // Results of the last completed run
+    private volatile Map<String, long[]> _conformance;
+    private volatile long _lastRunMillis;
+    private volatile long _lastRunDuration;
+
+    public MonitorMetrics() {
+        _latency = new EnumMap<FeedRole, LatencyHistogram>(FeedRole.class);
+        _bytes = new EnumMap<FeedRole, AtomicLong>(FeedRole.class);
+        _errors = new EnumMap<FeedRole, AtomicLong>(FeedRole.class);
+        for (FeedRole role: FeedRole.values()) {
+            _latency.put(role, new LatencyHistogram());
+            _bytes.put(role, new AtomicLong());
+            _errors.put(role, new AtomicLong());
+        }
+        _runs = new AtomicLong();
+        _conformance = new LinkedHashMap<String, long[]>();
+    }
+
+    @Override
+    public void exchangeCompleted(final Exchange exchange) {
+        _latency.get(exchange.getRole()).recordNanos(exchange.getTotalNanos());
+        _bytes.get(exchange.getRole()).addAndGet(exchange.getBodyLength());
+        // 406 is a legal answer to the requests with an unknown media type
+        if (exchange.getStatus() >= 400 && exchange.getStatus() != 406) {
+            _errors.get(exchange.getRole()).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+        _errors.get(role).incrementAndGet();
+    }
+
+    @Override
+    public void testRunStarted(final Description description) {
+        _current = new LinkedHashMap<String, long[]>();
+    }
+
+    @Override
+    public void testFinished(final Description description) {
+        counts(description)[0]++;
+    }
+
+    @Override
+    public void testFailure(final Failure failure) {
+        counts(failure.getDescription())[1]++;
+    }
+
+    @Override
+    public void testRunFinished(final Result result) {
+        _conformance = _current;
+        _lastRunMillis = System.currentTimeMillis();
+        _lastRunDuration = result.getRunTime();
+        _runs.incrementAndGet();
+    }
+
+    private long[] counts(final Description description) {
+        String name = description.getClassName();
+        name = name.substring(name.lastIndexOf('.') + 1);
+        long[] counts = _current.get(name);
+        if (counts == null) {
+            counts = new long[2];
+            _current.put(name, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format (version 0.0.4).
+     *
+     * @return The metrics.
+     */
+    public String render() {
+        final StringBuilder buff = new StringBuilder(8192);
+        header(buff, "sdshare_request_duration_seconds", "histogram", "Time to retrieve a resource incl. the body");
+        for (FeedRole role: FeedRole.values()) {
+            final LatencyHistogram histogram = _latency.get(role);
+            final String label = "role=\"" + role.label() + "\"";
+            for (double bucket: _BUCKETS) {
+                sample(buff, "sdshare_request_duration_seconds_bucket", label + ",le=\"" + bucket + "\"",
+                        histogram.getCountAtOrBelow((long) (bucket * 1e6)));
+            }
+            sample(buff, "sdshare_request_duration_seconds_bucket", label + ",le=\"+Inf\"", histogram.getCount());
+            sample(buff, "sdshare_request_duration_seconds_sum", label, histogram.getSum() / 1e6);
+            sample(buff, "sdshare_request_duration_seconds_count", label, histogram.getCount());
+        }
+        header(buff, "sdshare_response_bytes_total", "counter", "Received response body bytes");
+        for (FeedRole role: FeedRole.values()) {
+            sample(buff, "sdshare_response_bytes_total", "role=\"" + role.label() + "\"", _bytes.get(role).get());
+        }
+        header(buff, "sdshare_request_errors_total", "counter", "Failed requests and error responses");
+        for (FeedRole role: FeedRole.values()) {
+            sample(buff, "sdshare_request_errors_total", "role=\"" + role.label() + "\"", _errors.get(role).get());
+        }
+        final Map<String, long[]> conformance = _conformance;
+        header(buff, "sdshare_conformance_passed", "gauge", "1 if all tests of the test class passed in the last run");
+        for (Map.Entry<String, long[]> entry: conformance.entrySet()) {
+            sample(buff, "sdshare_conformance_passed", "test=\"" + entry.getKey() + "\"", entry.getValue()[1] == 0 ? 1 : 0);
+        }
+        header(buff, "sdshare_conformance_tests", "gauge", "Number of tests executed in the last run");
+        for (Map.Entry<String, long[]> entry: conformance.entrySet()) {
+            sample(buff, "sdshare_conformance_tests", "test=\"" + entry.getKey() + "\"", entry.getValue()[0]);
+        }
+        header(buff, "sdshare_conformance_failures", "gauge", "Number of failed tests in the last run");
+        for (Map.Entry<String, long[]> entry: conformance.entrySet()) {
+            sample(buff, "sdshare_conformance_failures", "test=\"" + entry.getKey() + "\"", entry.getValue()[1]);
+        }
+        header(buff, "sdshare_runs_total", "counter", "Number of completed test runs");
+        sample(buff, "sdshare_runs_total", null, _runs.get());
+        header(buff, "sdshare_last_run_timestamp_seconds", "gauge", "End of the last completed test run");
+        sample(buff, "sdshare_last_run_timestamp_seconds", null, _lastRunMillis / 1000.0);
+        header(buff, "sdshare_last_run_duration_seconds", "gauge", "Duration of the last completed test run");
+        sample(buff, "sdshare_last_run_duration_seconds", null, _lastRunDuration / 1000.0);
+        return buff.toString();
+    }
+
+    private static void header(final StringBuilder buff, final String name, final String type, final String help) {
+        buff.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder buff, final String name, final String labels, final double value) {
+        buff.append(name);
+        if (labels != null) {
+            buff.append('{').append(labels).append('}');
+        }
+        buff.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            buff.append((long) value);
+        }
+        else {
+            buff.append(String.format(Locale.ENGLISH, "%.6f", value));
+        }
+        buff.append('\n');
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.net.URI;
+
+/**
+ * Keeps track of the pages and entries seen while following the 'next' links
+ * of a paged feed.
+ * <p>
+ * Only 64 bit fingerprints are stored (see {@link LongHashSet#fingerprint(CharSequence)}),
+ * so the memory footprint does not depend on the length of the page IRIs or
+ * resource identifiers. The pages are kept in a {@link LongHashSet}, the
+ * entries in a {@link BloomFilter} which needs two to four bytes per entry.
+ * </p>
+ * <p>
+ * The Bloom filter reports about one of 100 new entries as already seen,
+ * so {@link #addEntry(String, String)} only finds suspected duplicates. To
+ * confirm them, the feed is read a second time and each entry is passed to
+ * {@link #confirmEntry(String, String)}, which counts the occurrences of
+ * the suspected entries exactly.
+ * </p>
+ */
+final class PagingChecker {
+
+    private static final double _FALSE_POSITIVES = 0.01;
+
+    private final LongHashSet _pages;
+    private final BloomFilter _entries;
+    private final LongHashSet _suspects;
+    private final LongHashSet _confirmed;
+
+    public PagingChecker() {
+        _pages = new LongHashSet();
+        _entries = new BloomFilter(_FALSE_POSITIVES);
+        _suspects = new LongHashSet();
+        _confirmed = new LongHashSet();
+    }
+
+    /**
+     * Registers a page.
+     *
+     * @param page The page IRI.
+     * @return <tt>true</tt> if the page was not visited before, <tt>false</tt>
+     *          if the 'next' links form a cycle.
+     */
+    public boolean visitPage(final URI page) {
+        return _pages.add(LongHashSet.fingerprint(page.normalize().toString()));
+    }
+
+    /**
+     * Registers an entry.
+     * <p>
+     * An entry is identified by the resource identifier and the update time.
+     * A resource may occur several times in a fragments feed if it was
+     * modified several times, but the same modification must not be reported
+     * twice.
+     * </p>
+     *
+     * @param resource The resource identifier (the value of <tt>sd:resource</tt>).
+     * @param updated The value of <tt>atom:updated</tt>.
+     * @return <tt>true</tt> if the entry was not seen before, <tt>false</tt>
+     *          if it is a suspected duplicate which has to be confirmed.
+     */
+    public boolean addEntry(final String resource, final String updated) {
+        final long fingerprint = entryFingerprint(resource, updated);
+        if (_entries.add(fingerprint)) {
+            return true;
+        }
+        _suspects.add(fingerprint);
+        return false;
+    }
+
+    /**
+     * Returns if {@link #addEntry(String, String)} found suspected duplicates.
+     *
+     * @return <tt>true</tt> if the feed has to be read a second time.
+     */
+    public boolean hasSuspects() {
+        return _suspects.size() > 0;
+    }
+
+    /**
+     * Registers an entry while the feed is read a second time.
+     *
+     * @param resource The resource identifier (the value of <tt>sd:resource</tt>).
+     * @param updated The value of <tt>atom:updated</tt>.
+     * @return <tt>false</tt> if the entry is a confirmed duplicate, otherwise <tt>true</tt>.
+     */
+    public boolean confirmEntry(final String resource, final String updated) {
+        final long fingerprint = entryFingerprint(resource, updated);
+        return !_suspects.contains(fingerprint) || _confirmed.add(fingerprint);
+    }
+
+    /**
+     * Returns the number of visited pages.
+     *
+     * @return The number of pages.
+     */
+    public int getPageCount() {
+        return _pages.size();
+    }
+
+    /**
+     * Returns the number of distinct entries.
+     *
+     * @return The number of entries.
+     */
+    public long getEntryCount() {
+        return _entries.size();
+    }
+
+    private static long entryFingerprint(final String resource, final String updated) {
+        return LongHashSet.fingerprint(resource + '\u0000' + updated);
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * Records latency and size per page depth while following the 'next' links
+ * of a paged feed and detects if the latency grows with the depth.
+ * <p>
+ * Servers which implement paging with <tt>OFFSET</tt> queries have to skip
+ * all previous rows for each page, so the latency of page <tt>n</tt> grows
+ * with <tt>n</tt> and the time to traverse the whole feed grows faster than
+ * the number of pages. Keyset (seek) paging keeps the latency constant.
+ * </p>
+ * <p>
+ * The per-page latency is fitted to <tt>latency = a * depth<sup>k</sup></tt>
+ * (least squares in log-log space). An exponent <tt>k</tt> of about 0 means
+ * constant cost per page; the traversal of <tt>n</tt> pages takes
+ * about <tt>n<sup>1+k</sup></tt>.
+ * </p>
+ */
+final class PagingProfile {
+
+    /**
+     * Exponent above which the latency growth is reported as super-linear.
+     */
+    public static final String MAX_EXPONENT_PROPERTY = "org.sdshare.paging.maxexponent";
+
+    /**
+     * Min. number of pages required to fit a trend.
+     */
+    public static final String MIN_PAGES_PROPERTY = "org.sdshare.paging.minpages";
+
+    private final URI _feed;
+    private long[] _nanos;
+    private long[] _bytes;
+    private int _size;
+
+    public PagingProfile(final URI feed) {
+        _feed = feed;
+        _nanos = new long[64];
+        _bytes = new long[64];
+    }
+
+    /**
+     * Records the next page.
+     *
+     * @param exchange The exchange which retrieved the page.
+     */
+    public void add(final Exchange exchange) {
+        add(exchange.getTotalNanos(), exchange.getBodyLength());
+    }
+
+    /**
+     * Records the next page.
+     *
+     * @param nanos The time to retrieve the page.
+     * @param bytes The size of the page.
+     */
+    public void add(final long nanos, final long bytes) {
+        if (_size == _nanos.length) {
+            _nanos = Arrays.copyOf(_nanos, _size * 2);
+            _bytes = Arrays.copyOf(_bytes, _size * 2);
+        }
+        _nanos[_size] = nanos;
+        _bytes[_size] = bytes;
+        _size++;
+    }
+
+    /**
+     * Returns the number of recorded pages.
+     *
+     * @return The number of pages.
+     */
+    public int getPageCount() {
+        return _size;
+    }
+
+    /**
+     * Returns the fitted exponent <tt>k</tt> of <tt>latency = a * depth<sup>k</sup></tt>.
+     *
+     * @return The exponent or <tt>0</tt> if less than two pages were recorded.
+     */
+    public double getExponent() {
+        return fit()[0];
+    }
+
+    /**
+     * Returns the coefficient of determination of the fit.
+     *
+     * @return A value between 0 and 1.
+     */
+    public double getRSquared() {
+        return fit()[1];
+    }
+
+    /**
+     * Returns if the latency grows super-linearly with the depth, i.e. if
+     * the exponent exceeds {@link #MAX_EXPONENT_PROPERTY} (default: 0.5)
+     * and at least {@link #MIN_PAGES_PROPERTY} (default: 10) pages were recorded.
+     *
+     * @return <tt>true</tt> if the paging degrades, otherwise <tt>false</tt>.
+     */
+    public boolean isDegrading() {
+        final double maxExponent = Double.parseDouble(System.getProperty(MAX_EXPONENT_PROPERTY, "0.5"));
+        return _size >= Integer.getInteger(MIN_PAGES_PROPERTY, 10)
+                && getExponent() > maxExponent;
+    }
+
+    /**
+     * Returns a human readable report. The pages are grouped into buckets
+     * of exponentially growing depth (1, 2-3, 4-7, ...).
+     *
+     * @return The report.
+     */
+    public String report() {
+        final StringBuilder buff = new StringBuilder();
+        buff.append("Paging profile of ").append(_feed).append(" (").append(_size).append(" pages)\n");
+        buff.append(String.format("  %-15s %12s %12s%n", "depth", "avg ms", "avg KiB"));
+        for (int lo=1; lo<=_size; lo*=2) {
+            final int hi = Math.min(lo * 2 - 1, _size);
+            long nanos = 0;
+            long bytes = 0;
+            for (int depth=lo; depth<=hi; depth++) {
+                nanos += _nanos[depth - 1];
+                bytes += _bytes[depth - 1];
+            }
+            final int n = hi - lo + 1;
+            buff.append(String.format("  %-15s %12.1f %12.1f%n", lo == hi ? String.valueOf(lo) : lo + "-" + hi,
+                    nanos / 1e6 / n, bytes / 1024.0 / n));
+        }
+        final double[] fit = fit();
+        buff.append(String.format("  latency ~ depth^%.2f (r^2 = %.2f), traversal time ~ pages^%.2f%n", fit[0], fit[1], 1 + fit[0]));
+        if (isDegrading()) {
+            buff.append("  DEGRADING: The latency grows with the page depth; the server probably pages with OFFSET queries, consider keyset paging\n");
+        }
+        return buff.toString();
+    }
+
+    /**
+     * Least squares fit of log(latency) against log(depth).
+     * <p>
+     * The last page is usually shorter than the others and is left out
+     * if there are enough pages.
+     * </p>
+     *
+     * @return An array of the exponent and r<sup>2</sup>.
+     */
+    private double[] fit() {
+        if (_size < 2) {
+            return new double[] {0, 0};
+        }
+        final int pages = _size > 2 ? _size - 1 : _size;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0, sumYY = 0;
+        for (int i=0; i<pages; i++) {
+            final double x = Math.log(i + 1);
+            final double y = Math.log(Math.max(1, _nanos[i]));
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            sumYY += y * y;
+        }
+        final double n = pages;
+        final double covXY = sumXY - sumX * sumY / n;
+        final double varX = sumXX - sumX * sumX / n;
+        final double varY = sumYY - sumY * sumY / n;
+        if (varX == 0) {
+            return new double[] {0, 0};
+        }
+        final double slope = covXY / varX;
+        final double r2 = varY == 0 ? 1 : (covXY * covXY) / (varX * varY);
+        return new double[] {slope, r2};
+    }
+
+}
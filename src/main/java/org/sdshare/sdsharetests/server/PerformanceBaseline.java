@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Compact performance summary of a test run: latency percentiles, bytes
+ * and the number of requests (pages) per {@link FeedRole}.
+ * <p>
+ * Besides the percentiles the mean and variance of the logarithm of the
+ * latencies are kept. Latencies are roughly log-normal, so these allow a
+ * significance test between two baselines without keeping the samples.
+ * </p>
+ * <p>
+ * A baseline is stored as a properties file with keys like
+ * <tt>fragments_feed.p99_ms</tt>.
+ * </p>
+ */
+final class PerformanceBaseline implements IExchangeListener {
+
+    private final Map<FeedRole, Stats> _stats;
+    private final Properties _info;
+
+    public PerformanceBaseline() {
+        _stats = new EnumMap<FeedRole, Stats>(FeedRole.class);
+        for (FeedRole role: FeedRole.values()) {
+            _stats.put(role, new Stats());
+        }
+        _info = new Properties();
+    }
+
+    @Override
+    public void exchangeCompleted(final Exchange exchange) {
+        final Stats stats = _stats.get(exchange.getRole());
+        final int status = exchange.getStatus();
+        synchronized (stats) {
+            if (status < 400) {
+                stats.add(exchange.getTotalNanos(), exchange.getBodyLength());
+            }
+            // 406 is a legal answer to the requests with an unknown media type
+            else if (status != 406) {
+                stats.errors++;
+            }
+        }
+    }
+
+    @Override
+    public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+        final Stats stats = _stats.get(role);
+        synchronized (stats) {
+            stats.errors++;
+        }
+    }
+
+    /**
+     * Sets an informational value (i.e. the server address) which is stored
+     * with the baseline.
+     *
+     * @param key The key.
+     * @param value The value.
+     */
+    public void setInfo(final String key, final String value) {
+        _info.setProperty(key, value);
+    }
+
+    /**
+     * Returns an informational value.
+     *
+     * @param key The key.
+     * @return The value or <tt>null</tt>.
+     */
+    public String getInfo(final String key) {
+        return _info.getProperty(key);
+    }
+
+    /**
+     * Returns the statistics of the provided role.
+     *
+     * @param role The role.
+     * @return The statistics, never <tt>null</tt>.
+     */
+    public Stats getStats(final FeedRole role) {
+        return _stats.get(role);
+    }
+
+    /**
+     * Writes this baseline to the provided file.
+     *
+     * @param file The file.
+     * @throws IOException In case of an error.
+     */
+    public void store(final File file) throws IOException {
+        final Properties props = new Properties();
+        for (String key: _info.stringPropertyNames()) {
+            props.setProperty("run." + key, _info.getProperty(key));
+        }
+        for (FeedRole role: FeedRole.values()) {
+            final Stats stats = _stats.get(role);
+            synchronized (stats) {
+                if (stats.requests == 0 && stats.errors == 0) {
+                    continue;
+                }
+                stats.summarize();
+                final String prefix = role.label() + ".";
+                props.setProperty(prefix + "requests", String.valueOf(stats.requests));
+                props.setProperty(prefix + "errors", String.valueOf(stats.errors));
+                props.setProperty(prefix + "bytes", String.valueOf(stats.bytes));
+                props.setProperty(prefix + "log_mean", String.valueOf(stats.logMean));
+                props.setProperty(prefix + "log_variance", String.valueOf(stats.getLogVariance()));
+                props.setProperty(prefix + "p50_ms", String.valueOf(stats.p50));
+                props.setProperty(prefix + "p90_ms", String.valueOf(stats.p90));
+                props.setProperty(prefix + "p99_ms", String.valueOf(stats.p99));
+                props.setProperty(prefix + "max_ms", String.valueOf(stats.max));
+            }
+        }
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, "SDShare performance baseline");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a baseline from the provided file.
+     *
+     * @param file The file.
+     * @return The baseline.
+     * @throws IOException In case of an error.
+     */
+    public static PerformanceBaseline load(final File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+        final PerformanceBaseline baseline = new PerformanceBaseline();
+        for (String key: props.stringPropertyNames()) {
+            if (key.startsWith("run.")) {
+                baseline.setInfo(key.substring(4), props.getProperty(key));
+            }
+        }
+        try {
+            for (FeedRole role: FeedRole.values()) {
+                final String prefix = role.label() + ".";
+                if (props.getProperty(prefix + "requests") == null) {
+                    continue;
+                }
+                final Stats stats = baseline.getStats(role);
+                stats.requests = Long.parseLong(props.getProperty(prefix + "requests"));
+                stats.errors = Long.parseLong(props.getProperty(prefix + "errors"));
+                stats.bytes = Long.parseLong(props.getProperty(prefix + "bytes"));
+                stats.logMean = Double.parseDouble(props.getProperty(prefix + "log_mean"));
+                stats.logM2 = Double.parseDouble(props.getProperty(prefix + "log_variance")) * Math.max(0, stats.requests - 1);
+                stats.p50 = Double.parseDouble(props.getProperty(prefix + "p50_ms"));
+                stats.p90 = Double.parseDouble(props.getProperty(prefix + "p90_ms"));
+                stats.p99 = Double.parseDouble(props.getProperty(prefix + "p99_ms"));
+                stats.max = Double.parseDouble(props.getProperty(prefix + "max_ms"));
+            }
+        }
+        catch (RuntimeException ex) {
+            // NumberFormatException or NullPointerException for a missing key
+            throw new IOException("Invalid baseline " + file + ": " + ex);
+        }
+        return baseline;
+    }
+
+
+    /**
+     * Statistics of one role. All latencies are in milliseconds.
+     */
+    static final class Stats {
+
+        long requests;
+        long errors;
+        long bytes;
+        // Welford's online mean / sum of squared deviations of ln(latency)
+        double logMean;
+        double logM2;
+        double p50;
+        double p90;
+        double p99;
+        double max;
+
+        // Only used while recording
+        private final LatencyHistogram _histogram = new LatencyHistogram();
+
+        void add(final long nanos, final long length) {
+            requests++;
+            bytes += length;
+            // Clamp to 1 microsecond, the log of 0 is undefined
+            final double value = Math.log(Math.max(nanos, 1000) / 1e6);
+            final double delta = value - logMean;
+            logMean += delta / requests;
+            logM2 += delta * (value - logMean);
+            _histogram.recordNanos(nanos);
+        }
+
+        /**
+         * Updates the percentiles from the recorded latencies.
+         */
+        void summarize() {
+            if (_histogram.getCount() > 0) {
+                p50 = _histogram.getPercentile(50) / 1000.0;
+                p90 = _histogram.getPercentile(90) / 1000.0;
+                p99 = _histogram.getPercentile(99) / 1000.0;
+                max = _histogram.getMax() / 1000.0;
+            }
+        }
+
+        /**
+         * Returns the variance of ln(latency).
+         */
+        double getLogVariance() {
+            return requests < 2 ? 0 : logM2 / (requests - 1);
+        }
+
+        /**
+         * Returns the geometric mean of the latencies.
+         */
+        double getGeometricMean() {
+            return Math.exp(logMean);
+        }
+
+        /**
+         * Returns the average body size.
+         */
+        double getBytesPerRequest() {
+            return requests == 0 ? 0 : bytes / (double) requests;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.sdshare.sdsharetests.MediaType;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler which streams the resource identifiers out of a snapshot into
+ * an {@link ExternalSorter}.
+ * <p>
+ * Supported are the XML based snapshot formats:
+ * <ul>
+ *   <li>XTM 2.0/2.1: <tt>subjectIdentifier/@href</tt> and <tt>subjectLocator/@href</tt></li>
+ *   <li>XTM 1.0: <tt>subjectIdentity/subjectIndicatorRef/@xlink:href</tt> and
+ *       <tt>subjectIdentity/resourceRef/@xlink:href</tt></li>
+ *   <li>RDF/XML: <tt>@rdf:about</tt></li>
+ * </ul>
+ * Topics with several identifiers contribute each of them.
+ * </p>
+ */
+final class ResourceIdentifierHandler extends DefaultHandler {
+
+    private static final String _NS_XTM_20 = "http://www.topicmaps.org/xtm/";
+    private static final String _NS_XTM_10 = "http://www.topicmaps.org/xtm/1.0/";
+    private static final String _NS_XLINK = "http://www.w3.org/1999/xlink";
+    private static final String _NS_RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+    private final URI _base;
+    private final ExternalSorter _sink;
+    private int _subjectIdentityDepth;
+
+    /**
+     * Creates a handler.
+     *
+     * @param base The base IRI to resolve relative identifiers against.
+     * @param sink The sorter which receives the identifiers.
+     */
+    public ResourceIdentifierHandler(final URI base, final ExternalSorter sink) {
+        _base = base;
+        _sink = sink;
+    }
+
+    /**
+     * Returns if the provided snapshot media type can be handled.
+     *
+     * @param mediaType The media type of the snapshot.
+     * @return <tt>true</tt> if the media type is supported, otherwise <tt>false</tt>.
+     */
+    public static boolean isSupported(final MediaType mediaType) {
+        return MediaType.XTM.isCompatible(mediaType)
+                || MediaType.RDF_XML.isCompatible(mediaType);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) throws SAXException {
+        if (_NS_XTM_20.equals(uri)) {
+            if ("subjectIdentifier".equals(localName) || "subjectLocator".equals(localName)) {
+                emit(atts.getValue("", "href"));
+            }
+        }
+        else if (_NS_XTM_10.equals(uri)) {
+            if ("subjectIdentity".equals(localName)) {
+                _subjectIdentityDepth++;
+            }
+            else if (_subjectIdentityDepth > 0
+                    && ("subjectIndicatorRef".equals(localName) || "resourceRef".equals(localName))) {
+                emit(atts.getValue(_NS_XLINK, "href"));
+            }
+        }
+        else {
+            emit(atts.getValue(_NS_RDF, "about"));
+        }
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        if (_NS_XTM_10.equals(uri) && "subjectIdentity".equals(localName)) {
+            _subjectIdentityDepth--;
+        }
+    }
+
+    private void emit(final String iri) throws SAXException {
+        if (iri == null) {
+            return;
+        }
+        String value = iri.trim();
+        try {
+            value = _base.resolve(value).toString();
+        }
+        catch (IllegalArgumentException ex) {
+            // Keep the identifier as it is
+        }
+        try {
+            _sink.add(value);
+        }
+        catch (IOException ex) {
+            throw new SAXException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares two performance baselines written by {@link RunServerTests}
+ * (see <tt>org.sdshare.baseline</tt>) and exits with status <tt>1</tt> if
+ * the current baseline regressed.
+ * <p>
+ * Usage: <tt>RunBaselineComparison &lt;baseline&gt; &lt;current&gt;</tt>
+ * </p>
+ * <p>
+ * A role regressed if
+ * <ul>
+ *   <li>the typical (geometric mean) latency grew by more than the latency
+ *       tolerance and the difference is significant (Welch's t-test on the
+ *       log latencies),</li>
+ *   <li>the p99 latency grew by more than the p99 tolerance,</li>
+ *   <li>the average response size or the number of requests (pages) changed
+ *       by more than the bytes resp. pages tolerance, or</li>
+ *   <li>errors occurred which did not occur before.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.compare.alpha</tt>: Significance level (default: 0.05)</li>
+ *   <li><tt>org.sdshare.compare.latency</tt>: Latency tolerance (default: 0.1, 10%)</li>
+ *   <li><tt>org.sdshare.compare.p99</tt>: p99 latency tolerance (default: 0.25)</li>
+ *   <li><tt>org.sdshare.compare.bytes</tt>: Response size tolerance (default: 0.1)</li>
+ *   <li><tt>org.sdshare.compare.pages</tt>: Request count tolerance (default: 0.1)</li>
+ * </ul>
+ * </p>
+ */
+public class RunBaselineComparison {
+
+    private static final String _ALPHA_PROPERTY = "org.sdshare.compare.alpha";
+    private static final String _LATENCY_PROPERTY = "org.sdshare.compare.latency";
+    private static final String _P99_PROPERTY = "org.sdshare.compare.p99";
+    private static final String _BYTES_PROPERTY = "org.sdshare.compare.bytes";
+    private static final String _PAGES_PROPERTY = "org.sdshare.compare.pages";
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: RunBaselineComparison <baseline> <current>");
+            System.exit(2);
+        }
+        final PerformanceBaseline baseline;
+        final PerformanceBaseline current;
+        try {
+            baseline = PerformanceBaseline.load(new File(args[0]));
+            current = PerformanceBaseline.load(new File(args[1]));
+        }
+        catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+            return;
+        }
+        final List<String> regressions = compare(baseline, current, System.out);
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions");
+            System.exit(0);
+        }
+        System.out.println(regressions.size() + " regression(s):");
+        for (String regression: regressions) {
+            System.out.println("  " + regression);
+        }
+        System.exit(1);
+    }
+
+    /**
+     * Prints a comparison table and returns the regressions.
+     *
+     * @param baseline The reference baseline.
+     * @param current The baseline to check.
+     * @param out The stream to print the table to.
+     * @return A (possibly empty) list of regression descriptions.
+     */
+    static List<String> compare(final PerformanceBaseline baseline, final PerformanceBaseline current, final PrintStream out) {
+        final double alpha = Double.parseDouble(System.getProperty(_ALPHA_PROPERTY, "0.05"));
+        final double latencyTolerance = Double.parseDouble(System.getProperty(_LATENCY_PROPERTY, "0.1"));
+        final double p99Tolerance = Double.parseDouble(System.getProperty(_P99_PROPERTY, "0.25"));
+        final double bytesTolerance = Double.parseDouble(System.getProperty(_BYTES_PROPERTY, "0.1"));
+        final double pagesTolerance = Double.parseDouble(System.getProperty(_PAGES_PROPERTY, "0.1"));
+        final List<String> regressions = new ArrayList<String>();
+        out.println(String.format("%-16s %9s %9s %8s %8s %9s %9s %8s %8s %8s",
+                "role", "requests", "gmean ms", "change", "p", "p99 ms", "change", "bytes", "pages", "errors"));
+        for (FeedRole role: FeedRole.values()) {
+            final PerformanceBaseline.Stats before = baseline.getStats(role);
+            final PerformanceBaseline.Stats after = current.getStats(role);
+            if (before.requests == 0 && after.requests == 0) {
+                continue;
+            }
+            final String label = role.label();
+            if (before.requests == 0 || after.requests == 0) {
+                out.println(String.format("%-16s %9d  not comparable, %d requests in the baseline", label,
+                        after.requests, before.requests));
+                if (after.requests == 0) {
+                    regressions.add(label + ": no successful requests");
+                }
+                continue;
+            }
+            final double latencyChange = after.getGeometricMean() / before.getGeometricMean() - 1;
+            final double p = Statistics.welchTTest(before.logMean, before.getLogVariance(), before.requests,
+                    after.logMean, after.getLogVariance(), after.requests);
+            final double p99Change = change(before.p99, after.p99);
+            final double bytesChange = change(before.getBytesPerRequest(), after.getBytesPerRequest());
+            final double pagesChange = change(before.requests, after.requests);
+            out.println(String.format("%-16s %9d %9.1f %+7.1f%% %8.4f %9.1f %+8.1f%% %+7.1f%% %+7.1f%% %8d",
+                    label, after.requests, after.getGeometricMean(), latencyChange * 100, p,
+                    after.p99, p99Change * 100, bytesChange * 100, pagesChange * 100, after.errors));
+            if (latencyChange > latencyTolerance && p < alpha) {
+                regressions.add(String.format("%s: latency %+.1f%% (%.1f ms -> %.1f ms, p=%.4f)",
+                        label, latencyChange * 100, before.getGeometricMean(), after.getGeometricMean(), p));
+            }
+            if (p99Change > p99Tolerance) {
+                regressions.add(String.format("%s: p99 latency %+.1f%% (%.1f ms -> %.1f ms)",
+                        label, p99Change * 100, before.p99, after.p99));
+            }
+            if (Math.abs(bytesChange) > bytesTolerance) {
+                regressions.add(String.format("%s: bytes per response %+.1f%% (%.0f -> %.0f)",
+                        label, bytesChange * 100, before.getBytesPerRequest(), after.getBytesPerRequest()));
+            }
+            if (Math.abs(pagesChange) > pagesTolerance) {
+                regressions.add(String.format("%s: requests %+.1f%% (%d -> %d)",
+                        label, pagesChange * 100, before.requests, after.requests));
+            }
+            if (after.errors > before.errors) {
+                regressions.add(String.format("%s: errors %d -> %d", label, before.errors, after.errors));
+            }
+        }
+        return regressions;
+    }
+
+    private static double change(final double before, final double after) {
+        return before == 0 ? (after == 0 ? 0 : Double.POSITIVE_INFINITY) : after / before - 1;
+    }
+
+}
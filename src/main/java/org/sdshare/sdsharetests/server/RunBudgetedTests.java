@@ -0,0 +1,419 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+
+import org.sdshare.sdsharetests.IConstants;
+import org.sdshare.sdsharetests.MediaType;
+
+/**
+ * Checks as much of the server as possible within a fixed time budget and
+ * reports the coverage per collection.
+ * <p>
+ * The work is scheduled by {@link CoverageScheduler} in tiers:
+ * <ol>
+ *   <li>the collection feeds, the first page of each fragments feed and the
+ *       snapshots feeds,</li>
+ *   <li>the latest snapshot and a sample of the fragments of the first page,</li>
+ *   <li>the further pages of the fragments feeds (breadth-first by page
+ *       number) with a sample of their fragments,</li>
+ *   <li>all remaining fragments and snapshots.</li>
+ * </ol>
+ * So every collection gets its first pages checked before the budget is
+ * spent on the depth of a single huge collection. The remaining fragments
+ * of a page are not queued up front; the page is read again once the last
+ * tier reaches it, so the queue does not grow with the size of the
+ * collection.
+ * </p>
+ * <p>
+ * The checks are lighter than the ones of the test suite: status code,
+ * media type, well-formedness of the feeds and the paging of the fragments
+ * feeds (cycles, duplicate entries). Duplicate entries are not confirmed by
+ * a second pass (see {@link PagingChecker}), so they are reported as
+ * suspects, not as problems. The Atom schema is not validated.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.budget.seconds</tt>: The time budget (default: 60)</li>
+ *   <li><tt>org.sdshare.budget.threads</tt>: Number of concurrent requests (default: 4)</li>
+ *   <li><tt>org.sdshare.budget.sample</tt>: Fragments per page checked early (default: 3)</li>
+ *   <li><tt>org.sdshare.budget.grace</tt>: Seconds the running requests may take after the
+ *       budget is spent before they are abandoned and reported as unfinished (default: 5)</li>
+ * </ul>
+ * The process exits with status 1 if a problem was found.
+ * </p>
+ */
+public class RunBudgetedTests implements IConstants {
+
+    private static final String _SECONDS_PROPERTY = "org.sdshare.budget.seconds";
+    private static final String _THREADS_PROPERTY = "org.sdshare.budget.threads";
+    private static final String _SAMPLE_PROPERTY = "org.sdshare.budget.sample";
+    private static final String _GRACE_PROPERTY = "org.sdshare.budget.grace";
+
+    private static final int _TIER_FIRST_PAGES = 0;
+    private static final int _TIER_SAMPLES = 1;
+    private static final int _TIER_DEPTH = 2;
+    private static final int _TIER_REST = 3;
+
+    private static final String _ATOM_LINK = "[not(@type) or @type='" + MEDIA_TYPE_ATOM_XML + "']";
+
+    private static final int _SAMPLE = Integer.getInteger(_SAMPLE_PROPERTY, 3);
+
+    public static void main(String[] args) throws Exception {
+        final long budget = TimeUnit.SECONDS.toNanos(Integer.getInteger(_SECONDS_PROPERTY, 60));
+        final long start = System.nanoTime();
+        final CoverageScheduler scheduler = new CoverageScheduler(start + budget);
+        final List<Coverage> coverages = new ArrayList<Coverage>();
+        for (URI uri: Utils.fetchCollectionFeedURIs()) {
+            final Coverage coverage = new Coverage(uri);
+            coverages.add(coverage);
+            scheduler.submit(new CollectionFeedTask(coverage));
+        }
+        final List<CoverageScheduler.Task> pending = scheduler.run(Integer.getInteger(_THREADS_PROPERTY, 4),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(_GRACE_PROPERTY, 5)));
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        report(System.out, coverages, pending.size(), scheduler.getUnfinished(), seconds);
+        int problems = 0;
+        for (Coverage coverage: coverages) {
+            problems += coverage.problems.size();
+        }
+        System.exit(problems == 0 ? 0 : 1);
+    }
+
+    private static void report(final PrintStream out, final List<Coverage> coverages, final int pending,
+            final List<CoverageScheduler.Task> unfinished, final double seconds) {
+        out.println(String.format("%-50s %10s %8s %14s %14s %8s", "collection", "feeds", "pages", "fragments", "snapshots", "problems"));
+        for (Coverage c: coverages) {
+            out.println(String.format("%-50s %10s %8s %14s %14s %8d", abbreviate(c.uri.toString(), 50),
+                    c.feeds.get() + "/" + c.feedsKnown.get(),
+                    c.pages.get() + "/" + c.pagesKnown.get() + (c.lastPage ? "" : "+"),
+                    c.fragments.get() + "/" + c.fragmentsKnown.get(),
+                    c.snapshots.get() + "/" + c.snapshotsKnown.get(),
+                    c.problems.size()));
+        }
+        out.println("checked / known resources; pages: '+' if the last page of the fragments feed was not reached");
+        out.println(String.format("Finished in %.1f s, %d task(s) not started, %d unfinished", seconds, pending, unfinished.size()));
+        for (CoverageScheduler.Task task: unfinished) {
+            if (task instanceof CheckTask) {
+                out.println("UNFINISHED " + ((CheckTask) task).uri + ": no response within the grace period");
+            }
+        }
+        for (Coverage c: coverages) {
+            if (c.suspects.get() > 0) {
+                out.println("SUSPECT " + c.uri + ": " + c.suspects.get() + " entries may be reported twice,"
+                        + " about 1% of the entries are false positives; TestFragmentsFeed confirms them");
+            }
+        }
+        for (Coverage c: coverages) {
+            // Copied since abandoned tasks may still add problems
+            for (String problem: new ArrayList<String>(c.problems)) {
+                out.println("PROBLEM " + problem);
+            }
+        }
+    }
+
+    private static String abbreviate(final String s, final int max) {
+        return s.length() <= max ? s : "..." + s.substring(s.length() - max + 3);
+    }
+
+    private static List<URI> links(final Document feed, final String xpath) {
+        final Nodes links = feed.query(xpath, Utils.getDefaultXPathContext());
+        return new ArrayList<URI>(Utils.linksToURIs(feed.getBaseURI(), links));
+    }
+
+    // Returns the fragment links of a fragments feed page in document order
+    private static Nodes fragmentLinks(final Document feed) {
+        return feed.query("atom:feed/atom:entry[sd:resource]/atom:link[@rel='" + REL_FRAGMENT + "']",
+                Utils.getDefaultXPathContext());
+    }
+
+    private static void submitFragments(final CoverageScheduler scheduler, final Coverage coverage, final Document feed,
+            final Nodes links, final int from, final int to, final int tier, final int depth) {
+        final URI base = URI.create(feed.getBaseURI());
+        for (int i=from; i<to; i++) {
+            final Element link = (Element) links.get(i);
+            scheduler.submit(new ResourceTask(tier, depth, coverage, base.resolve(link.getAttributeValue("href")),
+                    FeedRole.FRAGMENT, mediaType(link, MEDIA_TYPE_XTM)));
+        }
+    }
+
+    private static String mediaType(final Element link, final String defaultMediaType) {
+        final String type = link.getAttributeValue("type");
+        return type != null ? type : defaultMediaType;
+    }
+
+
+    /**
+     * The coverage and the problems of one collection.
+     */
+    private static final class Coverage {
+
+        final URI uri;
+        final AtomicInteger feeds = new AtomicInteger();
+        final AtomicInteger feedsKnown = new AtomicInteger();
+        final AtomicInteger pages = new AtomicInteger();
+        final AtomicInteger pagesKnown = new AtomicInteger();
+        final AtomicInteger fragments = new AtomicInteger();
+        final AtomicInteger fragmentsKnown = new AtomicInteger();
+        final AtomicInteger snapshots = new AtomicInteger();
+        final AtomicInteger snapshotsKnown = new AtomicInteger();
+        // Entries the PagingChecker suspects to be duplicates
+        final AtomicInteger suspects = new AtomicInteger();
+        final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean lastPage;
+
+        Coverage(final URI uri) {
+            this.uri = uri;
+        }
+    }
+
+
+    /**
+     * Retrieves a resource and checks the status code and the media type.
+     */
+    private abstract static class CheckTask extends CoverageScheduler.Task {
+
+        protected final Coverage coverage;
+        protected final URI uri;
+        private final FeedRole _role;
+        private final String _mediaType;
+        private final AtomicInteger _checked;
+
+        /**
+         * Creates a task and counts its resource as known.
+         *
+         * @param known The counter of the known resources of this kind.
+         * @param checked The counter of the checked resources of this kind.
+         */
+        CheckTask(final int tier, final int depth, final Coverage coverage, final URI uri, final FeedRole role,
+                  final String mediaType, final AtomicInteger known, final AtomicInteger checked) {
+            super(tier, depth);
+            this.coverage = coverage;
+            this.uri = uri;
+            _role = role;
+            _mediaType = mediaType;
+            _checked = checked;
+            known.incrementAndGet();
+        }
+
+        @Override
+        protected void execute(final CoverageScheduler scheduler) {
+            _checked.incrementAndGet();
+            final Exchange exchange;
+            try {
+                exchange = Utils.fetch(uri, _role, _mediaType);
+            }
+            catch (IOException ex) {
+                coverage.problems.add(uri + ": " + ex);
+                return;
+            }
+            try {
+                if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                    coverage.problems.add(uri + ": expected status code 200, got " + exchange.getStatus());
+                    return;
+                }
+                final String contentType = exchange.getContentType();
+                if (contentType == null || !MediaType.valueOf(_mediaType).isCompatible(MediaType.valueOf(contentType))) {
+                    coverage.problems.add(uri + ": expected a media type compatible to " + _mediaType + ", got " + contentType);
+                    return;
+                }
+                checked(scheduler, exchange);
+            }
+            catch (Exception ex) {
+                coverage.problems.add(uri + ": " + ex);
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        protected void failed(final RuntimeException ex) {
+            coverage.problems.add(uri + ": " + ex);
+        }
+
+        /**
+         * Called after the resource was retrieved successfully.
+         */
+        protected void checked(final CoverageScheduler scheduler, final Exchange exchange) throws Exception {
+            // noop.
+        }
+    }
+
+
+    private static final class CollectionFeedTask extends CheckTask {
+
+        CollectionFeedTask(final Coverage coverage) {
+            super(_TIER_FIRST_PAGES, 0, coverage, coverage.uri, FeedRole.COLLECTION_FEED, MEDIA_TYPE_ATOM_XML,
+                    coverage.feedsKnown, coverage.feeds);
+        }
+
+        @Override
+        protected void checked(final CoverageScheduler scheduler, final Exchange exchange) throws Exception {
+            final Document feed = Utils.makeDocument(exchange.openBody(), uri);
+            final String entryLink = "atom:feed/atom:entry/atom:link[@rel='";
+            for (URI fragments: links(feed, entryLink + REL_FRAGMENTS_FEED + "']" + _ATOM_LINK)) {
+                scheduler.submit(new FragmentsPageTask(coverage, fragments, 0, new PagingChecker()));
+            }
+            for (URI snapshots: links(feed, entryLink + REL_SNAPSHOTS_FEED + "']" + _ATOM_LINK)) {
+                scheduler.submit(new SnapshotsFeedTask(coverage, snapshots));
+            }
+        }
+
+    }
+
+
+    private static final class SnapshotsFeedTask extends CheckTask {
+
+        SnapshotsFeedTask(final Coverage coverage, final URI uri) {
+            super(_TIER_FIRST_PAGES, 0, coverage, uri, FeedRole.SNAPSHOTS_FEED, MEDIA_TYPE_ATOM_XML,
+                    coverage.feedsKnown, coverage.feeds);
+        }
+
+        @Override
+        protected void checked(final CoverageScheduler scheduler, final Exchange exchange) throws Exception {
+            final Document feed = Utils.makeDocument(exchange.openBody(), uri);
+            final List<Element> entries = Utils.newestFirst(feed.query("atom:feed/atom:entry[atom:link[@rel='" + REL_SNAPSHOT + "']]",
+                    Utils.getDefaultXPathContext()));
+            final URI base = URI.create(feed.getBaseURI());
+            int depth = 0;
+            for (int i=0; i<entries.size(); i++) {
+                final Nodes links = entries.get(i).query("atom:link[@rel='" + REL_SNAPSHOT + "']", Utils.getDefaultXPathContext());
+                for (int j=0; j<links.size(); j++) {
+                    final Element link = (Element) links.get(j);
+                    // Only the latest snapshot is part of the samples
+                    scheduler.submit(new ResourceTask(i == 0 ? _TIER_SAMPLES : _TIER_REST, depth++, coverage,
+                            base.resolve(link.getAttributeValue("href")), FeedRole.SNAPSHOT, mediaType(link, MEDIA_TYPE_XTM)));
+                }
+            }
+        }
+    }
+
+
+    private static final class FragmentsPageTask extends CheckTask {
+
+        private final PagingChecker _checker;
+
+        FragmentsPageTask(final Coverage coverage, final URI uri, final int page, final PagingChecker checker) {
+            super(page == 0 ? _TIER_FIRST_PAGES : _TIER_DEPTH, page, coverage, uri, FeedRole.FRAGMENTS_FEED, MEDIA_TYPE_ATOM_XML,
+                    coverage.pagesKnown, coverage.pages);
+            _checker = checker;
+        }
+
+        @Override
+        protected void checked(final CoverageScheduler scheduler, final Exchange exchange) throws Exception {
+            final Document feed = Utils.makeDocument(exchange.openBody(), uri);
+            final Nodes entries = feed.query("atom:feed/atom:entry[sd:resource]", Utils.getDefaultXPathContext());
+            for (int i=0; i<entries.size(); i++) {
+                final Element entry = (Element) entries.get(i);
+                final String resource = entry.query("sd:resource", Utils.getDefaultXPathContext()).get(0).getValue();
+                final Nodes updated = entry.query("atom:updated", Utils.getDefaultXPathContext());
+                if (!_checker.addEntry(resource, updated.size() > 0 ? updated.get(0).getValue() : "")) {
+                    coverage.suspects.incrementAndGet();
+                }
+            }
+            final Nodes links = fragmentLinks(feed);
+            final int sampled = Math.min(_SAMPLE, links.size());
+            submitFragments(scheduler, coverage, feed, links, 0, sampled,
+                    getDepth() == 0 ? _TIER_SAMPLES : _TIER_DEPTH, getDepth());
+            if (links.size() > sampled) {
+                scheduler.submit(new RestFragmentsTask(coverage, uri, getDepth(), sampled, links.size() - sampled));
+            }
+            final URI next = Utils.nextPageURI(feed);
+            if (next == null) {
+                coverage.lastPage = true;
+            }
+            else if (!_checker.visitPage(next)) {
+                coverage.problems.add(uri + ": the 'next' links form a cycle, " + next + " was already visited");
+                coverage.lastPage = true;
+            }
+            else {
+                scheduler.submit(new FragmentsPageTask(coverage, next, getDepth() + 1, _checker));
+            }
+        }
+
+        @Override
+        protected void execute(final CoverageScheduler scheduler) {
+            if (getDepth() == 0) {
+                _checker.visitPage(uri);
+            }
+            super.execute(scheduler);
+        }
+    }
+
+
+    /**
+     * Reads a page of a fragments feed again and checks the fragments which
+     * were not sampled by {@link FragmentsPageTask}.
+     */
+    private static final class RestFragmentsTask extends CheckTask {
+
+        private final int _skip;
+        private final int _deferred;
+
+        /**
+         * Creates a task and counts the deferred fragments as known.
+         *
+         * @param skip The number of fragment links which were sampled.
+         * @param deferred The number of fragment links which were not sampled.
+         */
+        RestFragmentsTask(final Coverage coverage, final URI uri, final int page, final int skip, final int deferred) {
+            // The page was counted by the FragmentsPageTask
+            super(_TIER_REST, page, coverage, uri, FeedRole.FRAGMENTS_FEED, MEDIA_TYPE_ATOM_XML,
+                    new AtomicInteger(), new AtomicInteger());
+            _skip = skip;
+            _deferred = deferred;
+            coverage.fragmentsKnown.addAndGet(deferred);
+        }
+
+        @Override
+        protected void checked(final CoverageScheduler scheduler, final Exchange exchange) throws Exception {
+            final Document feed = Utils.makeDocument(exchange.openBody(), uri);
+            final Nodes links = fragmentLinks(feed);
+            // The ResourceTasks count the fragments of the page as it is now
+            coverage.fragmentsKnown.addAndGet(-_deferred);
+            submitFragments(scheduler, coverage, feed, links, Math.min(_skip, links.size()), links.size(), _TIER_REST, getDepth());
+        }
+    }
+
+
+    /**
+     * Checks a snapshot or a fragment.
+     */
+    private static final class ResourceTask extends CheckTask {
+
+        ResourceTask(final int tier, final int depth, final Coverage coverage, final URI uri, final FeedRole role, final String mediaType) {
+            super(tier, depth, coverage, uri, role, mediaType,
+                    role == FeedRole.SNAPSHOT ? coverage.snapshotsKnown : coverage.fragmentsKnown,
+                    role == FeedRole.SNAPSHOT ? coverage.snapshots : coverage.fragments);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures the feed latencies per role on the first (cold) retrieval and on
+ * repeated (warm) retrievals to show the effect of the server-side caches.
+ * <p>
+ * The cold latencies are taken while the feed graph is discovered (and
+ * right afterwards for the feeds which are only linked, i.e. the snapshots
+ * feeds), so each feed is retrieved for the first time by this run. Then the graph is
+ * replayed for the configured number of unmeasured warm-up passes and then
+ * for the measured passes.
+ * </p>
+ * <p>
+ * Note: The cold latencies include the warm-up of the client JVM (class
+ * loading, the first connections). Run the tool twice against a server
+ * which was just restarted to separate both effects.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.coldwarm.warmup</tt>: Unmeasured passes (default: 1)</li>
+ *   <li><tt>org.sdshare.coldwarm.passes</tt>: Measured passes (default: 5)</li>
+ *   <li><tt>org.sdshare.coldwarm.maxpages</tt>: Max. pages per fragments feed (default: 0, all pages)</li>
+ * </ul>
+ * </p>
+ */
+public class RunColdWarm {
+
+    private static final String _WARMUP_PROPERTY = "org.sdshare.coldwarm.warmup";
+    private static final String _PASSES_PROPERTY = "org.sdshare.coldwarm.passes";
+    private static final String _MAX_PAGES_PROPERTY = "org.sdshare.coldwarm.maxpages";
+
+    public static void main(String[] args) throws Exception {
+        final int warmup = Integer.getInteger(_WARMUP_PROPERTY, 1);
+        final int passes = Math.max(1, Integer.getInteger(_PASSES_PROPERTY, 5));
+        final Recorder cold = new Recorder();
+        final Recorder warm = new Recorder();
+        final PrintStream out = System.out;
+
+        Utils.addExchangeListener(cold);
+        final FeedGraph graph;
+        try {
+            graph = FeedGraph.discover(Integer.getInteger(_MAX_PAGES_PROPERTY, 0));
+            // The discovery does not retrieve all feeds, i.e. the snapshots feeds
+            for (FeedGraph.Node node: graph.getNodes()) {
+                if (!cold.hasSeen(node.getURI())) {
+                    fetch(node);
+                }
+            }
+        }
+        finally {
+            Utils.removeExchangeListener(cold);
+        }
+        out.println("Discovered " + graph.size() + " feeds (cold pass)");
+        for (int i=0; i<warmup; i++) {
+            replay(graph);
+        }
+        out.println("Finished " + warmup + " warm-up pass(es)");
+        Utils.addExchangeListener(warm);
+        try {
+            for (int i=0; i<passes; i++) {
+                replay(graph);
+            }
+        }
+        finally {
+            Utils.removeExchangeListener(warm);
+        }
+        out.println("Finished " + passes + " measured pass(es)");
+        out.println();
+        out.println(String.format("%-16s %6s %10s %10s %10s %10s %10s %8s %8s", "role", "feeds",
+                "cold p50", "cold mean", "warm p50", "warm mean", "warm p99", "speedup", "errors"));
+        for (FeedRole role: FeedRole.values()) {
+            final LatencyHistogram coldLatency = cold.getLatency(role);
+            final LatencyHistogram warmLatency = warm.getLatency(role);
+            if (coldLatency.getCount() == 0 && warmLatency.getCount() == 0) {
+                continue;
+            }
+            final double speedup = warmLatency.getMean() == 0 ? 0 : coldLatency.getMean() / warmLatency.getMean();
+            out.println(String.format("%-16s %6d %10.1f %10.1f %10.1f %10.1f %10.1f %7.2fx %8d", role.label(),
+                    coldLatency.getCount(),
+                    coldLatency.getPercentile(50) / 1000.0, coldLatency.getMean() / 1000.0,
+                    warmLatency.getPercentile(50) / 1000.0, warmLatency.getMean() / 1000.0,
+                    warmLatency.getPercentile(99) / 1000.0, speedup,
+                    cold.getErrors(role) + warm.getErrors(role)));
+        }
+        out.println("Latencies in ms; speedup = cold mean / warm mean");
+    }
+
+    private static void replay(final FeedGraph graph) {
+        for (FeedGraph.Node node: graph.getNodes()) {
+            fetch(node);
+        }
+    }
+
+    private static void fetch(final FeedGraph.Node node) {
+        try {
+            node.fetch().close();
+        }
+        catch (IOException ex) {
+            // Counted by the recorder
+        }
+    }
+
+
+    /**
+     * Records the latencies of successful exchanges per role. Only used by
+     * the main thread.
+     */
+    private static final class Recorder implements IExchangeListener {
+
+        private final Map<FeedRole, LatencyHistogram> _latency;
+        private final Map<FeedRole, long[]> _errors;
+        private final Set<URI> _seen;
+
+        Recorder() {
+            _latency = new EnumMap<FeedRole, LatencyHistogram>(FeedRole.class);
+            _errors = new EnumMap<FeedRole, long[]>(FeedRole.class);
+            for (FeedRole role: FeedRole.values()) {
+                _latency.put(role, new LatencyHistogram());
+                _errors.put(role, new long[1]);
+            }
+            _seen = new HashSet<URI>();
+        }
+
+        @Override
+        public void exchangeCompleted(final Exchange exchange) {
+            _seen.add(exchange.getURI());
+            if (exchange.getStatus() < 400) {
+                _latency.get(exchange.getRole()).recordNanos(exchange.getTotalNanos());
+            }
+            else {
+                _errors.get(exchange.getRole())[0]++;
+            }
+        }
+
+        @Override
+        public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+            _errors.get(role)[0]++;
+        }
+
+        boolean hasSeen(final URI uri) {
+            return _seen.contains(uri);
+        }
+
+        LatencyHistogram getLatency(final FeedRole role) {
+            return _latency.get(role);
+        }
+
+        long getErrors(final FeedRole role) {
+            return _errors.get(role)[0];
+        }
+    }
+
+}
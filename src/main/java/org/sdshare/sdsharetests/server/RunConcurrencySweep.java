@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the feed graph (overview, collection, snapshots and fragments
+ * feeds) at increasing concurrency levels 1, 2, 4, ... N and reports the
+ * throughput and latency per level. The last level is always N, even if it
+ * is not a power of two (i.e. 1, 2, 4, ... 32, 48).
+ * <p>
+ * The knee is the last level which increased the throughput by at least
+ * the configured gain; beyond it additional concurrency only adds latency.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.sweep.maxconcurrency</tt>: The highest level (default: 64)</li>
+ *   <li><tt>org.sdshare.sweep.duration</tt>: Measured seconds per level (default: 30)</li>
+ *   <li><tt>org.sdshare.sweep.warmup</tt>: Unmeasured seconds per level (default: 5)</li>
+ *   <li><tt>org.sdshare.sweep.maxpages</tt>: Max. pages per fragments feed (default: 0, all pages)</li>
+ *   <li><tt>org.sdshare.sweep.mingain</tt>: Min. relative throughput gain (default: 0.1)</li>
+ *   <li><tt>org.sdshare.sweep.csv</tt>: CSV output file (default: <tt>sdshare-sweep.csv</tt>)</li>
+ * </ul>
+ * </p>
+ */
+public class RunConcurrencySweep {
+
+    private static final String _MAX_CONCURRENCY_PROPERTY = "org.sdshare.sweep.maxconcurrency";
+    private static final String _DURATION_PROPERTY = "org.sdshare.sweep.duration";
+    private static final String _WARMUP_PROPERTY = "org.sdshare.sweep.warmup";
+    private static final String _MAX_PAGES_PROPERTY = "org.sdshare.sweep.maxpages";
+    private static final String _MIN_GAIN_PROPERTY = "org.sdshare.sweep.mingain";
+    private static final String _CSV_PROPERTY = "org.sdshare.sweep.csv";
+
+    public static void main(String[] args) throws Exception {
+        final int maxConcurrency = Integer.getInteger(_MAX_CONCURRENCY_PROPERTY, 64);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("The max. concurrency (" + _MAX_CONCURRENCY_PROPERTY + ") must be at least 1");
+        }
+        // The JDK keeps only 5 idle connections per host by default
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(maxConcurrency));
+        }
+        final FeedGraph graph = FeedGraph.discover(Integer.getInteger(_MAX_PAGES_PROPERTY, 0));
+        final long durationMillis = Integer.getInteger(_DURATION_PROPERTY, 30) * 1000L;
+        final long warmupMillis = Integer.getInteger(_WARMUP_PROPERTY, 5) * 1000L;
+        final PrintStream out = System.out;
+        out.println("Replaying " + graph.size() + " feeds");
+        out.println(String.format("%11s %10s %10s %10s %10s %8s", "concurrency", "req/s", "p50 ms", "p99 ms", "max ms", "errors"));
+        final List<Level> levels = new ArrayList<Level>();
+        for (int concurrency=1; concurrency>0; concurrency=nextLevel(concurrency, maxConcurrency)) {
+            run(graph, concurrency, warmupMillis);
+            final Level level = run(graph, concurrency, durationMillis);
+            levels.add(level);
+            out.println(String.format("%11d %10.1f %10.1f %10.1f %10.1f %8d", level.concurrency, level.throughput(),
+                    level.latency.getPercentile(50) / 1000.0, level.latency.getPercentile(99) / 1000.0,
+                    level.latency.getMax() / 1000.0, level.errors.get()));
+        }
+        final Level knee = findKnee(levels, Double.parseDouble(System.getProperty(_MIN_GAIN_PROPERTY, "0.1")));
+        out.println(String.format("Knee at concurrency %d: %.1f req/s, p99 %.1f ms", knee.concurrency, knee.throughput(),
+                knee.latency.getPercentile(99) / 1000.0));
+        if (knee != levels.get(levels.size() - 1)) {
+            out.println("Beyond this level the latency rises without a throughput gain");
+        }
+        final File csv = new File(System.getProperty(_CSV_PROPERTY, "sdshare-sweep.csv"));
+        writeCSV(csv, levels);
+        out.println("Wrote " + csv.getAbsolutePath());
+    }
+
+    /**
+     * Returns the level after the provided one: twice the level, but at
+     * most <tt>max</tt>, or 0 if the provided level is the last one.
+     */
+    static int nextLevel(final int concurrency, final int max) {
+        return concurrency >= max ? 0 : (int) Math.min(concurrency * 2L, max);
+    }
+
+    /**
+     * Returns the last level which increased the throughput by at least
+     * <tt>minGain</tt> compared to the previous level.
+     */
+    static Level findKnee(final List<Level> levels, final double minGain) {
+        Level knee = levels.get(0);
+        for (Level level: levels.subList(1, levels.size())) {
+            if (level.throughput() >= knee.throughput() * (1 + minGain)) {
+                knee = level;
+            }
+            else {
+                break;
+            }
+        }
+        return knee;
+    }
+
+    private static Level run(final FeedGraph graph, final int concurrency, final long durationMillis) throws InterruptedException {
+        final Level level = new Level(concurrency);
+        final List<FeedGraph.Node> nodes = graph.getNodes();
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        final long start = System.nanoTime();
+        final long deadline = start + durationMillis * 1000000L;
+        for (int i=0; i<concurrency; i++) {
+            final int offset = i * nodes.size() / concurrency;
+            final Thread worker = new Thread("sdshare-sweep-" + concurrency + "-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int n=offset; System.nanoTime() < deadline; n++) {
+                            try {
+                                final Exchange exchange = nodes.get(n % nodes.size()).fetch();
+                                if (exchange.getStatus() >= 400) {
+                                    level.errors.incrementAndGet();
+                                }
+                                level.latency.recordNanos(exchange.getTotalNanos());
+                                exchange.close();
+                            }
+                            catch (Exception ex) {
+                                level.errors.incrementAndGet();
+                            }
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        level.nanos = System.nanoTime() - start;
+        return level;
+    }
+
+    private static void writeCSV(final File file, final List<Level> levels) throws Exception {
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
+        try {
+            writer.println("concurrency,requests,errors,seconds,requests_per_second,p50_ms,p90_ms,p99_ms,max_ms");
+            for (Level level: levels) {
+                writer.println(String.format(Locale.ENGLISH, "%d,%d,%d,%.3f,%.2f,%.3f,%.3f,%.3f,%.3f",
+                        level.concurrency, level.latency.getCount(), level.errors.get(), level.nanos / 1e9,
+                        level.throughput(), level.latency.getPercentile(50) / 1000.0,
+                        level.latency.getPercentile(90) / 1000.0, level.latency.getPercentile(99) / 1000.0,
+                        level.latency.getMax() / 1000.0));
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+
+    /**
+     * The result of a single concurrency level.
+     */
+    static final class Level {
+
+        final int concurrency;
+        final LatencyHistogram latency;
+        final AtomicLong errors;
+        long nanos;
+
+        Level(final int concurrency) {
+            this.concurrency = concurrency;
+            this.latency = new LatencyHistogram();
+            this.errors = new AtomicLong();
+        }
+
+        /**
+         * Returns the number of completed requests per second.
+         */
+        double throughput() {
+            return nanos == 0 ? 0 : latency.getCount() / (nanos / 1e9);
+        }
+    }
+
+}
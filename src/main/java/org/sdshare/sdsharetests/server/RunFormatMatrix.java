@@ -0,0 +1,301 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+
+import org.sdshare.sdsharetests.IConstants;
+import org.sdshare.sdsharetests.MediaType;
+
+/**
+ * Requests a sample of snapshots and fragments in each syntax the suite
+ * knows (XTM 1.0, 2.0, 2.1, CTM and RDF/XML) and reports the cost of each
+ * syntax per role.
+ * <p>
+ * The sample consists of the latest snapshots of each snapshots feed and
+ * the fragments of the first page of each fragments feed. Each resource is
+ * requested once per syntax with the media type of the syntax as
+ * <tt>Accept</tt> header. If the entry has a link with exactly this media
+ * type, its IRI is used, otherwise the IRI of the first link (content
+ * negotiation). The order of the syntaxes rotates per resource, so no
+ * syntax always hits a cold cache.
+ * </p>
+ * <p>
+ * The report shows per syntax: the requests, how many of them were
+ * advertised by a link, answered with the requested media type ("ok"),
+ * answered with another status or media type ("other") or failed, the
+ * server latency (time until the response headers), the payload size and
+ * the time to parse the payload. CTM is not XML and there is no CTM
+ * parser, so its parse time is not measured.
+ * </p>
+ * <p>
+ * With <tt>-Dorg.sdshare.standin=true</tt> the matrix is measured against
+ * a local {@link StandInServer}.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.formats.snapshots</tt>: Snapshots per snapshots feed (default: 1)</li>
+ *   <li><tt>org.sdshare.formats.fragments</tt>: Fragments per fragments feed (default: 10)</li>
+ * </ul>
+ * </p>
+ */
+public class RunFormatMatrix implements IConstants {
+
+    private static final String _SNAPSHOTS_PROPERTY = "org.sdshare.formats.snapshots";
+    private static final String _FRAGMENTS_PROPERTY = "org.sdshare.formats.fragments";
+
+    private static final MediaType[] _FORMATS = new MediaType[] {
+        MediaType.XTM_10, MediaType.XTM_20, MediaType.XTM_21, MediaType.CTM, MediaType.RDF_XML
+    };
+
+    public static void main(String[] args) throws Exception {
+        final StandInServer standIn = StandInServer.startIfRequested();
+        try {
+            run(System.out);
+        }
+        finally {
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+    }
+
+    private static void run(final PrintStream out) throws Exception {
+        final List<Sample> samples = new ArrayList<Sample>();
+        for (URI feed: Utils.fetchSnapshotsFeedURIs()) {
+            samples.addAll(sample(feed, FeedRole.SNAPSHOTS_FEED, REL_SNAPSHOT, FeedRole.SNAPSHOT,
+                    Integer.getInteger(_SNAPSHOTS_PROPERTY, 1)));
+        }
+        for (URI feed: Utils.fetchFragmentsFeedURIs()) {
+            samples.addAll(sample(feed, FeedRole.FRAGMENTS_FEED, REL_FRAGMENT, FeedRole.FRAGMENT,
+                    Integer.getInteger(_FRAGMENTS_PROPERTY, 10)));
+        }
+        if (samples.isEmpty()) {
+            out.println("No snapshots or fragments found");
+            return;
+        }
+        final Map<FeedRole, Cell[]> matrix = new EnumMap<FeedRole, Cell[]>(FeedRole.class);
+        for (FeedRole role: new FeedRole[] {FeedRole.SNAPSHOT, FeedRole.FRAGMENT}) {
+            final Cell[] cells = new Cell[_FORMATS.length];
+            for (int i=0; i<cells.length; i++) {
+                cells[i] = new Cell();
+            }
+            matrix.put(role, cells);
+        }
+        out.println("Requesting " + samples.size() + " resources in " + _FORMATS.length + " syntaxes");
+        for (int i=0; i<samples.size(); i++) {
+            final Sample sample = samples.get(i);
+            for (int j=0; j<_FORMATS.length; j++) {
+                final int format = (i + j) % _FORMATS.length;
+                measure(sample, _FORMATS[format], matrix.get(sample.role)[format]);
+            }
+        }
+        report(out, matrix);
+    }
+
+    /**
+     * Returns the resources linked from the first entries of the first page
+     * of the provided feed; the snapshots are taken newest first.
+     */
+    private static List<Sample> sample(final URI feedURI, final FeedRole feedRole, final String rel, final FeedRole role,
+            final int max) throws Exception {
+        final List<Sample> result = new ArrayList<Sample>();
+        final Exchange exchange = Utils.fetch(feedURI, feedRole, MEDIA_TYPE_ATOM_XML);
+        final Document feed;
+        try {
+            if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                return result;
+            }
+            feed = Utils.makeDocument(exchange.openBody(), feedURI);
+        }
+        finally {
+            exchange.close();
+        }
+        final URI base = URI.create(feed.getBaseURI());
+        final Nodes nodes = feed.query("atom:feed/atom:entry[atom:link[@rel='" + rel + "']]", Utils.getDefaultXPathContext());
+        final List<Element> entries;
+        if (REL_SNAPSHOT.equals(rel)) {
+            entries = Utils.newestFirst(nodes);
+        }
+        else {
+            entries = new ArrayList<Element>(nodes.size());
+            for (int i=0; i<nodes.size(); i++) {
+                entries.add((Element) nodes.get(i));
+            }
+        }
+        for (int i=0; i<entries.size() && result.size() < max; i++) {
+            final Nodes links = entries.get(i).query("atom:link[@rel='" + rel + "']", Utils.getDefaultXPathContext());
+            final Sample sample = new Sample(role, base.resolve(((Element) links.get(0)).getAttributeValue("href")));
+            for (int j=0; j<links.size(); j++) {
+                final Element link = (Element) links.get(j);
+                final String type = link.getAttributeValue("type");
+                if (type == null) {
+                    continue;
+                }
+                try {
+                    sample.links.put(MediaType.valueOf(type), base.resolve(link.getAttributeValue("href")));
+                }
+                catch (IllegalArgumentException ex) {
+                    // Skip links with an invalid media type
+                }
+            }
+            result.add(sample);
+        }
+        return result;
+    }
+
+    private static void measure(final Sample sample, final MediaType format, final Cell cell) {
+        final URI advertised = sample.links.get(format);
+        final URI uri = advertised != null ? advertised : sample.uri;
+        cell.requests++;
+        if (advertised != null) {
+            cell.advertised++;
+        }
+        final Exchange exchange;
+        try {
+            exchange = Utils.fetch(uri, sample.role, format.toString());
+        }
+        catch (IOException ex) {
+            cell.errors++;
+            return;
+        }
+        try {
+            if (exchange.getStatus() != HttpURLConnection.HTTP_OK || !matches(format, exchange.getContentType())) {
+                cell.other++;
+                return;
+            }
+            cell.ok++;
+            cell.latency.recordNanos(exchange.getHeaderNanos());
+            cell.bytes += exchange.getBodyLength();
+            if (format == MediaType.CTM) {
+                return;
+            }
+            try {
+                final long start = System.nanoTime();
+                Utils.makeDocument(exchange.openBody(), uri);
+                cell.parse.recordNanos(System.nanoTime() - start);
+            }
+            catch (Exception ex) {
+                cell.malformed++;
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // Returns if the content type is a valid media type which matches the format exactly
+    private static boolean matches(final MediaType format, final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        try {
+            final MediaType mediaType = MediaType.valueOf(contentType);
+            return format.isCompatible(mediaType, true) && mediaType.isCompatible(format, true);
+        }
+        catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static void report(final PrintStream out, final Map<FeedRole, Cell[]> matrix) {
+        out.println();
+        out.println(String.format("%-10s %-32s %5s %5s %5s %5s %5s %5s %9s %9s %9s %9s", "role", "syntax", "req", "adv",
+                "ok", "other", "err", "bad", "p50 ms", "p90 ms", "avg KiB", "parse ms"));
+        for (Map.Entry<FeedRole, Cell[]> row: matrix.entrySet()) {
+            final Cell[] cells = row.getValue();
+            int cheapest = -1;
+            for (int i=0; i<cells.length; i++) {
+                final Cell c = cells[i];
+                if (c.requests == 0) {
+                    continue;
+                }
+                out.println(String.format("%-10s %-32s %5d %5d %5d %5d %5d %5d %9.2f %9.2f %9.1f %9s", row.getKey().label(),
+                        _FORMATS[i], c.requests, c.advertised, c.ok, c.other, c.errors, c.malformed,
+                        c.latency.getPercentile(50) / 1e3, c.latency.getPercentile(90) / 1e3,
+                        c.ok == 0 ? 0 : c.bytes / 1024.0 / c.ok,
+                        c.parse.getCount() == 0 ? "-" : String.format("%.2f", c.parse.getPercentile(50) / 1e3)));
+                if (c.ok == c.requests && c.parse.getCount() > 0
+                        && (cheapest < 0 || c.cost() < cells[cheapest].cost())) {
+                    cheapest = i;
+                }
+            }
+            if (cheapest >= 0) {
+                out.println(String.format("%-10s cheapest syntax: %s (p50 latency + p50 parse = %.2f ms)", "",
+                        _FORMATS[cheapest], cells[cheapest].cost() / 1e3));
+            }
+        }
+        out.println("ok = status 200 with the requested media type, other = another status or media type,"
+                + " bad = not well-formed; latency = time until the response headers; parse ms = p50;"
+                + " the cheapest syntax is chosen among the XML syntaxes served for every request");
+    }
+
+
+    /**
+     * A resource and the IRIs advertised per media type.
+     */
+    private static final class Sample {
+
+        final FeedRole role;
+        // The IRI of the first link
+        final URI uri;
+        final Map<MediaType, URI> links;
+
+        Sample(final FeedRole role, final URI uri) {
+            this.role = role;
+            this.uri = uri;
+            links = new LinkedHashMap<MediaType, URI>();
+        }
+    }
+
+
+    /**
+     * The measurements of one role and syntax.
+     */
+    private static final class Cell {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram parse = new LatencyHistogram();
+        int requests;
+        int advertised;
+        int ok;
+        int other;
+        int errors;
+        int malformed;
+        long bytes;
+
+        /**
+         * Returns the p50 latency plus the p50 parse time in microseconds.
+         */
+        long cost() {
+            return latency.getPercentile(50) + parse.getPercentile(50);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the server tests periodically and serves the collected metrics in
+ * the Prometheus text format under <tt>http://host:port/metrics</tt>.
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.monitor.interval</tt>: Seconds between the end of a
+ *       run and the start of the next run (default: 300)</li>
+ *   <li><tt>org.sdshare.monitor.port</tt>: Port of the metrics endpoint (default: 9464)</li>
+ * </ul>
+ * </p>
+ */
+public class RunMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RunMonitor.class);
+
+    private static final String _INTERVAL_PROPERTY = "org.sdshare.monitor.interval";
+    private static final String _PORT_PROPERTY = "org.sdshare.monitor.port";
+
+    public static void main(String[] args) throws Exception {
+        final MonitorMetrics metrics = new MonitorMetrics();
+        Utils.addExchangeListener(metrics);
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress(Integer.getInteger(_PORT_PROPERTY, 9464)), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] body = metrics.render().getBytes("utf-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        LOG.info("Serving metrics on http://localhost:" + server.getAddress().getPort() + "/metrics");
+
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final JUnitCore junit = new JUnitCore();
+                    junit.addListener(metrics);
+                    final Result result = junit.run(RunServerTests.TEST_CLASSES);
+                    LOG.info("Test run finished: " + result.getRunCount() + " tests, " + result.getFailureCount() + " failures");
+                }
+                catch (Throwable ex) {
+                    // Keep the schedule alive
+                    LOG.error("Test run failed", ex);
+                }
+            }
+        }, 0, Integer.getInteger(_INTERVAL_PROPERTY, 300), TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+
+import org.sdshare.sdsharetests.IConstants;
+
+/**
+ * Measures how long it takes until a change is visible in the fragments
+ * feeds (propagation lag).
+ * <p>
+ * Each fragments feed is polled repeatedly. The first poll reads the
+ * entries updated since the start (minus an overlap), which are not
+ * measured. Each later poll reads the entries updated since the latest
+ * <tt>atom:updated</tt> value seen so far (minus the overlap to catch late
+ * entries) using the <tt>since</tt> parameter and follows the 'next' links.
+ * If the server ignores the <tt>since</tt> parameter, each poll reads the
+ * whole feed (up to <tt>org.sdshare.lag.maxpages</tt> pages). Entries older
+ * than the <tt>since</tt> value are neither measured nor remembered, so
+ * the memory usage depends on the number of changes within the overlap,
+ * not on the size of the feed. The lag of an entry is the
+ * time it was first seen minus its <tt>atom:updated</tt> value, so it
+ * includes up to one poll interval and depends on the clocks of the server
+ * and the client; the offset of the clocks is estimated from the
+ * <tt>Date</tt> response headers.
+ * </p>
+ * <p>
+ * With <tt>-Dorg.sdshare.standin=true</tt> the lag is measured against a
+ * local {@link StandInServer} which creates changes on a schedule.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.lag.duration</tt>: Seconds to poll (default: 60)</li>
+ *   <li><tt>org.sdshare.lag.interval</tt>: Milliseconds between the polls of a feed (default: 1000)</li>
+ *   <li><tt>org.sdshare.lag.overlap</tt>: Seconds to subtract from the <tt>since</tt> value (default: 60)</li>
+ *   <li><tt>org.sdshare.lag.maxpages</tt>: Max. pages per poll (default: 0, all pages)</li>
+ * </ul>
+ * </p>
+ */
+public class RunPropagationLag {
+
+    private static final String _DURATION_PROPERTY = "org.sdshare.lag.duration";
+    private static final String _INTERVAL_PROPERTY = "org.sdshare.lag.interval";
+    private static final String _OVERLAP_PROPERTY = "org.sdshare.lag.overlap";
+    private static final String _MAX_PAGES_PROPERTY = "org.sdshare.lag.maxpages";
+
+    // Offsets between the local clock and the Date header of the responses
+    private static final List<Long> _CLOCK_OFFSETS = Collections.synchronizedList(new ArrayList<Long>());
+
+    public static void main(String[] args) throws Exception {
+        final StandInServer standIn = StandInServer.startIfRequested();
+        try {
+            run(System.out);
+        }
+        finally {
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+    }
+
+    private static void run(final PrintStream out) throws Exception {
+        final long duration = Long.getLong(_DURATION_PROPERTY, 60);
+        final long interval = Math.max(1, Long.getLong(_INTERVAL_PROPERTY, 1000));
+        final List<Poller> pollers = new ArrayList<Poller>();
+        for (URI uri: Utils.fetchFragmentsFeedURIs()) {
+            pollers.add(new Poller(uri, Long.getLong(_OVERLAP_PROPERTY, 60) * 1000, Integer.getInteger(_MAX_PAGES_PROPERTY, 0)));
+        }
+        if (pollers.isEmpty()) {
+            out.println("No fragments feeds found");
+            return;
+        }
+        out.println("Polling " + pollers.size() + " fragments feeds every " + interval + " ms for " + duration + " s");
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(pollers.size(), 8));
+        for (Poller poller: pollers) {
+            scheduler.scheduleWithFixedDelay(poller, 0, interval, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(duration * 1000);
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+
+        out.println();
+        out.println(String.format("%-40s %5s %6s %6s %8s %8s %8s %8s %6s %6s %6s", "fragments feed", "since",
+                "polls", "new", "p50 s", "p90 s", "p99 s", "max s", "late", "skewed", "errors"));
+        final LatencyHistogram total = new LatencyHistogram();
+        long late = 0;
+        long skewed = 0;
+        long errors = 0;
+        for (Poller poller: pollers) {
+            synchronized (poller) {
+                out.println(String.format("%-40s %5s %6d %6d %8.2f %8.2f %8.2f %8.2f %6d %6d %6d", poller.uri,
+                        poller.since == null ? "?" : (poller.since ? "yes" : "no"), poller.polls,
+                        poller.lag.getCount(), seconds(poller.lag.getPercentile(50)), seconds(poller.lag.getPercentile(90)),
+                        seconds(poller.lag.getPercentile(99)), seconds(poller.lag.getMax()), poller.late, poller.skewed, poller.errors));
+                total.add(poller.lag);
+                late += poller.late;
+                skewed += poller.skewed;
+                errors += poller.errors;
+            }
+        }
+        out.println(String.format("%-40s %5s %6s %6d %8.2f %8.2f %8.2f %8.2f %6d %6d %6d", "total", "", "",
+                total.getCount(), seconds(total.getPercentile(50)), seconds(total.getPercentile(90)),
+                seconds(total.getPercentile(99)), seconds(total.getMax()), late, skewed, errors));
+        out.println("Lag = first seen - atom:updated, incl. up to " + interval + " ms poll interval; late = entries older than"
+                + " the newest entry seen before; skewed = entries seen before their atom:updated time (counted as 0)");
+        final List<Long> offsets = new ArrayList<Long>(_CLOCK_OFFSETS);
+        if (!offsets.isEmpty()) {
+            Collections.sort(offsets);
+            final long median = offsets.get(offsets.size() / 2);
+            out.println(String.format("Clock offset (receipt - Date header, 1 s resolution): median %.1f s%s", median / 1000.0,
+                    Math.abs(median) > 2000 ? " - the clocks differ, the lags are off by about this amount" : ""));
+        }
+    }
+
+    private static double seconds(final long micros) {
+        return micros / 1e6;
+    }
+
+    private static void recordClockOffset(final Exchange exchange, final long receivedMillis) {
+        final String date = exchange.getHeader("Date");
+        if (date == null) {
+            return;
+        }
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            _CLOCK_OFFSETS.add(receivedMillis - format.parse(date).getTime());
+        }
+        catch (ParseException ex) {
+            // Ignore malformed dates
+        }
+    }
+
+
+    /**
+     * Polls one fragments feed. The scheduler runs a poller in one thread
+     * at a time; the report reads its state after the scheduler terminated.
+     */
+    private static final class Poller implements Runnable {
+
+        final URI uri;
+        final LatencyHistogram lag;
+        private final long _overlap;
+        private final int _maxPages;
+        private final long _start;
+        // Fingerprints of the keys (id and updated) of the entries seen so far
+        private LongHashSet _seen;
+        // The previous generation of _seen, its entries were updated at or before _olderNewest
+        private LongHashSet _older;
+        private long _olderNewest;
+        private long _newest;
+        private boolean _initialized;
+        // null if not known yet
+        Boolean since;
+        int polls;
+        long late;
+        long skewed;
+        long errors;
+
+        Poller(final URI uri, final long overlap, final int maxPages) {
+            this.uri = uri;
+            lag = new LatencyHistogram();
+            _overlap = overlap;
+            _maxPages = maxPages;
+            _start = System.currentTimeMillis();
+            _seen = new LongHashSet();
+            _older = new LongHashSet();
+            _olderNewest = Long.MIN_VALUE;
+            _newest = Long.MIN_VALUE;
+        }
+
+        @Override
+        public synchronized void run() {
+            try {
+                poll();
+            }
+            catch (Exception ex) {
+                // Not propagated, the scheduler would cancel the next polls
+                errors++;
+            }
+        }
+
+        private void poll() throws Exception {
+            polls++;
+            final boolean useSince = !Boolean.FALSE.equals(since);
+            // The first poll does not read the entries updated before the start
+            final long sinceValue = (_newest != Long.MIN_VALUE ? _newest : _start) - _overlap;
+            final long newestBefore = _newest;
+            URI next = useSince ? Utils.withSince(uri, sinceValue) : uri;
+            final Set<URI> visited = new HashSet<URI>();
+            boolean ignored = false;
+            int pages = 0;
+            while (next != null && visited.add(next) && (_maxPages <= 0 || pages < _maxPages)) {
+                final Exchange exchange = Utils.fetch(next, FeedRole.FRAGMENTS_FEED, IConstants.MEDIA_TYPE_ATOM_XML);
+                final long received = exchange.getStartMillis() + exchange.getTotalNanos() / 1000000L;
+                pages++;
+                final Document feed;
+                try {
+                    if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                        if (useSince && pages == 1 && exchange.getStatus() == HttpURLConnection.HTTP_BAD_REQUEST) {
+                            // The server rejects the parameter, poll the whole feed from now on
+                            since = Boolean.FALSE;
+                        }
+                        else {
+                            errors++;
+                        }
+                        return;
+                    }
+                    recordClockOffset(exchange, received);
+                    feed = Utils.makeDocument(exchange.openBody(), next);
+                }
+                finally {
+                    exchange.close();
+                }
+                final Nodes entries = feed.query("atom:feed/atom:entry", Utils.getDefaultXPathContext());
+                for (int i=0; i<entries.size(); i++) {
+                    final Element entry = (Element) entries.get(i);
+                    final Nodes updatedNodes = entry.query("atom:updated", Utils.getDefaultXPathContext());
+                    if (updatedNodes.size() == 0) {
+                        continue;
+                    }
+                    final long updated = Utils.parseDateTime(updatedNodes.get(0).getValue());
+                    final Nodes id = entry.query("atom:id", Utils.getDefaultXPathContext());
+                    if (updated < sinceValue) {
+                        // Forgotten by prune() or older than the start
+                        ignored |= useSince;
+                        continue;
+                    }
+                    final long key = LongHashSet.fingerprint((id.size() > 0 ? id.get(0).getValue().trim() : "") + '|' + updated);
+                    if (!_older.contains(key) && _seen.add(key) && _initialized) {
+                        final long lagMillis = received - updated;
+                        if (lagMillis < 0) {
+                            skewed++;
+                        }
+                        lag.record(Math.max(0, lagMillis) * 1000);
+                        if (updated < newestBefore) {
+                            late++;
+                        }
+                    }
+                    _newest = Math.max(_newest, updated);
+                }
+                next = Utils.nextPageURI(feed);
+            }
+            if (useSince) {
+                since = !ignored;
+            }
+            _initialized = true;
+            prune();
+        }
+
+        // Drops the older generation once all of its entries are older than the next since value
+        private void prune() {
+            if (_newest != Long.MIN_VALUE && _newest - _overlap > _olderNewest) {
+                _older = _seen;
+                _olderNewest = _newest;
+                _seen = new LongHashSet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+
+import org.sdshare.sdsharetests.IConstants;
+import org.sdshare.sdsharetests.MediaType;
+import org.xml.sax.InputSource;
+
+/**
+ * Checks if the latest snapshot and the fragments feed of each collection
+ * cover the same set of resources.
+ * <p>
+ * The resource identifiers of both sources are streamed into
+ * {@link ExternalSorter}s, so the number of resources is not limited by the
+ * heap size. The sorted, duplicate-free streams are merged and each
+ * identifier which occurs in only one of them is reported.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.reconcile.runsize</tt>: Max. number of identifiers
+ *       kept in memory per source (default: 500000)</li>
+ *   <li><tt>org.sdshare.reconcile.maxreport</tt>: Max. number of missing/extra
+ *       identifiers printed per collection (default: 100)</li>
+ * </ul>
+ * The process exits with status 1 if a difference was found.
+ * </p>
+ */
+public class RunReconciliation implements IConstants {
+
+    private static final String _RUN_SIZE_PROPERTY = "org.sdshare.reconcile.runsize";
+    private static final String _MAX_REPORT_PROPERTY = "org.sdshare.reconcile.maxreport";
+
+    private final PrintStream _out;
+    private final int _runSize;
+    private final int _maxReport;
+
+    RunReconciliation(final PrintStream out, final int runSize, final int maxReport) {
+        _out = out;
+        _runSize = runSize;
+        _maxReport = maxReport;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final RunReconciliation reconciliation = new RunReconciliation(System.out,
+                Integer.getInteger(_RUN_SIZE_PROPERTY, 500000),
+                Integer.getInteger(_MAX_REPORT_PROPERTY, 100));
+        boolean consistent = true;
+        for (Utils.CollectionFeeds collection: Utils.fetchCollectionFeeds()) {
+            if (collection.snapshotsFeed == null || collection.fragmentsFeed == null) {
+                System.out.println("Collection " + collection.uri + "\n  Skipped: Expected a snapshots feed and a fragments feed");
+                continue;
+            }
+            consistent &= reconciliation.reconcile(collection.snapshotsFeed, collection.fragmentsFeed);
+        }
+        System.exit(consistent ? 0 : 1);
+    }
+
+    /**
+     * Compares the latest snapshot of the snapshots feed with the fragments feed.
+     *
+     * @param snapshotsFeed The snapshots feed IRI.
+     * @param fragmentsFeed The fragments feed IRI.
+     * @return <tt>true</tt> if both cover the same resources (or if there
+     *          is no snapshot to compare with), otherwise <tt>false</tt>.
+     * @throws Exception In case of an error.
+     */
+    boolean reconcile(final URI snapshotsFeed, final URI fragmentsFeed) throws Exception {
+        _out.println("Collection with snapshots feed " + snapshotsFeed + " and fragments feed " + fragmentsFeed);
+        final Element snapshot = findLatestSnapshot(Utils.fetchFeed(snapshotsFeed, FeedRole.SNAPSHOTS_FEED), _out);
+        if (snapshot == null) {
+            _out.println("  Skipped: No snapshot in a supported format (XTM, RDF/XML) found");
+            return true;
+        }
+        final ExternalSorter snapshotIds = new ExternalSorter(_runSize);
+        final ExternalSorter fragmentIds = new ExternalSorter(_runSize);
+        try {
+            final URI snapshotURI = URI.create(snapshot.getBaseURI()).resolve(snapshot.getAttributeValue("href"));
+            long start = System.nanoTime();
+            readSnapshot(snapshotURI, snapshot.getAttributeValue("type"), snapshotIds);
+            report("Snapshot " + snapshotURI, snapshotIds, System.nanoTime() - start);
+            start = System.nanoTime();
+            readFragmentsFeed(fragmentsFeed, fragmentIds);
+            report("Fragments feed", fragmentIds, System.nanoTime() - start);
+            start = System.nanoTime();
+            final boolean result = compare(snapshotIds.sorted(), fragmentIds.sorted());
+            report("Merge", null, System.nanoTime() - start);
+            return result;
+        }
+        finally {
+            snapshotIds.dispose();
+            fragmentIds.dispose();
+        }
+    }
+
+    /**
+     * Returns the link to the latest snapshot in a supported format.
+     * <p>
+     * Entries with an invalid <tt>atom:updated</tt> value and links with an
+     * invalid media type are skipped; their number is written to the
+     * provided stream.
+     * </p>
+     *
+     * @param feed The snapshots feed.
+     * @param out The stream to report skipped entries and links to.
+     * @return The <tt>atom:link</tt> element or <tt>null</tt> if no snapshot
+     *          in a supported format was found.
+     */
+    static Element findLatestSnapshot(final Document feed, final PrintStream out) {
+        final Nodes entries = feed.query("atom:feed/atom:entry[atom:link[@rel='" + REL_SNAPSHOT + "']]", Utils.getDefaultXPathContext());
+        Element result = null;
+        long latest = Long.MIN_VALUE;
+        int invalidUpdated = 0;
+        int invalidTypes = 0;
+        for (int i=0; i<entries.size(); i++) {
+            final Element entry = (Element) entries.get(i);
+            final Nodes updated = entry.query("atom:updated", Utils.getDefaultXPathContext());
+            long time = Long.MIN_VALUE;
+            if (updated.size() > 0) {
+                try {
+                    time = Utils.parseDateTime(updated.get(0).getValue());
+                }
+                catch (IllegalArgumentException ex) {
+                    invalidUpdated++;
+                    continue;
+                }
+            }
+            if (result != null && time <= latest) {
+                continue;
+            }
+            final Nodes links = entry.query("atom:link[@rel='" + REL_SNAPSHOT + "'][@type]", Utils.getDefaultXPathContext());
+            for (int j=0; j<links.size(); j++) {
+                final Element link = (Element) links.get(j);
+                final MediaType type;
+                try {
+                    type = MediaType.valueOf(link.getAttributeValue("type"));
+                }
+                catch (IllegalArgumentException ex) {
+                    invalidTypes++;
+                    continue;
+                }
+                if (ResourceIdentifierHandler.isSupported(type)) {
+                    result = link;
+                    latest = time;
+                    break;
+                }
+            }
+        }
+        if (invalidUpdated > 0) {
+            out.println("  Warning: Skipped " + invalidUpdated + " snapshot entries with an invalid atom:updated value");
+        }
+        if (invalidTypes > 0) {
+            out.println("  Warning: Skipped " + invalidTypes + " snapshot links with an invalid media type");
+        }
+        return result;
+    }
+
+    private static void readSnapshot(final URI uri, final String mediaType, final ExternalSorter sink) throws Exception {
+        final Exchange exchange = Utils.fetch(uri, FeedRole.SNAPSHOT, mediaType);
+        try {
+            if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected status code " + exchange.getStatus() + " for " + uri);
+            }
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            final InputSource src = new InputSource(exchange.openBody());
+            src.setSystemId(uri.toString());
+            factory.newSAXParser().parse(src, new ResourceIdentifierHandler(uri, sink));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void readFragmentsFeed(final URI fragmentsFeed, final ExternalSorter sink) throws Exception {
+        final PagingChecker checker = new PagingChecker();
+        URI uri = fragmentsFeed;
+        while (uri != null) {
+            if (!checker.visitPage(uri)) {
+                _out.println("  Warning: The 'next' links form a cycle at " + uri);
+                break;
+            }
+            final Document feed = Utils.fetchFeed(uri, FeedRole.FRAGMENTS_FEED);
+            final URI base = URI.create(feed.getBaseURI());
+            final Nodes resources = feed.query("atom:feed/atom:entry/sd:resource", Utils.getDefaultXPathContext());
+            for (int i=0; i<resources.size(); i++) {
+                sink.add(base.resolve(resources.get(i).getValue().trim()).toString());
+            }
+            uri = Utils.nextPageURI(feed);
+        }
+    }
+
+    private boolean compare(final ExternalSorter.Source snapshot, final ExternalSorter.Source fragments) throws Exception {
+        long missing = 0;
+        long extra = 0;
+        try {
+            String a = snapshot.next();
+            String b = fragments.next();
+            while (a != null || b != null) {
+                final int cmp = a == null ? 1 : b == null ? -1 : a.compareTo(b);
+                if (cmp < 0) {
+                    if (missing++ < _maxReport) {
+                        _out.println("  Missing in fragments feed: " + a);
+                    }
+                    a = snapshot.next();
+                }
+                else if (cmp > 0) {
+                    if (extra++ < _maxReport) {
+                        _out.println("  Not in snapshot: " + b);
+                    }
+                    b = fragments.next();
+                }
+                else {
+                    a = snapshot.next();
+                    b = fragments.next();
+                }
+            }
+        }
+        finally {
+            snapshot.close();
+            fragments.close();
+        }
+        _out.println("  " + missing + " resources missing in fragments feed, " + extra + " resources not in snapshot");
+        return missing == 0 && extra == 0;
+    }
+
+    private void report(final String phase, final ExternalSorter sorter, final long nanos) {
+        final double seconds = nanos / 1e9;
+        if (sorter == null) {
+            _out.println(String.format("  %s: %.2f s", phase, seconds));
+        }
+        else {
+            _out.println(String.format("  %s: %d identifiers in %.2f s (%.0f identifiers/s, %d runs)",
+                    phase, sorter.getCount(), seconds, sorter.getCount() / Math.max(seconds, 1e-9), sorter.getRunCount()));
+        }
+    }
+
+}
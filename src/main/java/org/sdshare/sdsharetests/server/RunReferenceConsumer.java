@@ -0,0 +1,579 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.XPathContext;
+
+import org.sdshare.sdsharetests.IConstants;
+import org.sdshare.sdsharetests.MediaType;
+
+/**
+ * A reference consumer which mirrors each collection into a local
+ * {@link MirrorStore} and measures how long the bootstrap takes.
+ * <p>
+ * The consumer loads the latest snapshot (each top-level item with a
+ * subject identifier becomes a record), then reads the fragments feed
+ * since the time of the snapshot and applies the fragments. The work is a
+ * pipeline: the feed pages are read by the main thread, the fragments are
+ * fetched by a pool of threads and a single writer thread stores the
+ * records in batches. The queues between the stages are bounded, so a
+ * slow stage throttles the stages before it.
+ * </p>
+ * <p>
+ * The fragments of a resource are always fetched by the same thread in the
+ * order of the feed, so a response for an older entry never overwrites the
+ * record of a newer one.
+ * </p>
+ * <p>
+ * The report shows the bootstrap time per collection and the catch-up
+ * throughput in resources per second; the steady-state throughput is the
+ * median of the one second windows, which excludes the ramp-up and the
+ * drain at the end.
+ * </p>
+ * <p>
+ * With <tt>-Dorg.sdshare.standin=true</tt> the consumer runs against a
+ * local {@link StandInServer}.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.consumer.threads</tt>: Number of fetch threads (default: 8)</li>
+ *   <li><tt>org.sdshare.consumer.batch</tt>: Max. records per write batch (default: 500)</li>
+ *   <li><tt>org.sdshare.consumer.queue</tt>: Capacity of the queues between the stages (default: 1000)</li>
+ *   <li><tt>org.sdshare.consumer.all</tt>: <tt>true</tt> to apply all fragments instead of
+ *       those since the snapshot, i.e. to measure the catch-up of a consumer with an old
+ *       snapshot (default: false)</li>
+ *   <li><tt>org.sdshare.consumer.dir</tt>: Directory to keep the stores in (default:
+ *       temporary files which are deleted at the end)</li>
+ * </ul>
+ * </p>
+ */
+public class RunReferenceConsumer implements IConstants {
+
+    private static final String _THREADS_PROPERTY = "org.sdshare.consumer.threads";
+    private static final String _BATCH_PROPERTY = "org.sdshare.consumer.batch";
+    private static final String _QUEUE_PROPERTY = "org.sdshare.consumer.queue";
+    private static final String _ALL_PROPERTY = "org.sdshare.consumer.all";
+    private static final String _DIR_PROPERTY = "org.sdshare.consumer.dir";
+
+    private static final XPathContext _SNAPSHOT_CTX;
+
+    static {
+        _SNAPSHOT_CTX = new XPathContext("xtm", "http://www.topicmaps.org/xtm/");
+        _SNAPSHOT_CTX.addNamespace("xtm1", "http://www.topicmaps.org/xtm/1.0/");
+        _SNAPSHOT_CTX.addNamespace("xlink", "http://www.w3.org/1999/xlink");
+        _SNAPSHOT_CTX.addNamespace("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
+    }
+
+    // Identifiers of a top-level snapshot item
+    private static final String _IDENTIFIERS = "xtm:subjectIdentifier/@href | xtm:subjectLocator/@href"
+            + " | xtm1:subjectIdentity/xtm1:subjectIndicatorRef/@xlink:href | xtm1:subjectIdentity/xtm1:resourceRef/@xlink:href"
+            + " | @rdf:about";
+
+    private final PrintStream _out;
+    private final int _threads;
+    private final int _batchSize;
+    private final int _queueSize;
+    private final boolean _all;
+
+    RunReferenceConsumer(final PrintStream out, final int threads, final int batchSize, final int queueSize, final boolean all) {
+        _out = out;
+        _threads = threads;
+        _batchSize = batchSize;
+        _queueSize = queueSize;
+        _all = all;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final StandInServer standIn = StandInServer.startIfRequested();
+        try {
+            final RunReferenceConsumer consumer = new RunReferenceConsumer(System.out,
+                    Math.max(1, Integer.getInteger(_THREADS_PROPERTY, 8)),
+                    Math.max(1, Integer.getInteger(_BATCH_PROPERTY, 500)),
+                    Math.max(1, Integer.getInteger(_QUEUE_PROPERTY, 1000)),
+                    Boolean.getBoolean(_ALL_PROPERTY));
+            final List<Utils.CollectionFeeds> collections = Utils.fetchCollectionFeeds();
+            final String dirName = System.getProperty(_DIR_PROPERTY);
+            final File dir = dirName != null ? new File(dirName) : null;
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+            final long start = System.nanoTime();
+            long resources = 0;
+            int mirrored = 0;
+            for (int i=0; i<collections.size(); i++) {
+                final Utils.CollectionFeeds collection = collections.get(i);
+                if (collection.fragmentsFeed == null) {
+                    System.out.println("Collection " + collection.uri + "\n  Skipped: No fragments feed found");
+                    continue;
+                }
+                final File file = dir != null ? new File(dir, "collection-" + i + ".log") : File.createTempFile("sdshare-mirror", ".log");
+                final MirrorStore store = new MirrorStore(file);
+                try {
+                    consumer.mirror(collection.snapshotsFeed, collection.fragmentsFeed, store);
+                    resources += store.size();
+                    mirrored++;
+                }
+                finally {
+                    store.close(dir == null);
+                }
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Mirrored %d collections with %d resources in %.2f s", mirrored, resources, seconds));
+        }
+        finally {
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+    }
+
+    /**
+     * Mirrors one collection.
+     *
+     * @param snapshotsFeed The snapshots feed IRI or <tt>null</tt> if the collection has none.
+     * @param fragmentsFeed The fragments feed IRI.
+     * @param store The store to write to.
+     * @throws Exception In case of an error.
+     */
+    void mirror(final URI snapshotsFeed, final URI fragmentsFeed, final MirrorStore store) throws Exception {
+        _out.println("Collection with snapshots feed " + snapshotsFeed + " and fragments feed " + fragmentsFeed);
+        final long start = System.nanoTime();
+        final Writer writer = new Writer(store, _batchSize, _queueSize);
+        writer.start();
+        try {
+            final Element link = snapshotsFeed == null ? null
+                                                       : RunReconciliation.findLatestSnapshot(Utils.fetchFeed(snapshotsFeed, FeedRole.SNAPSHOTS_FEED), _out);
+            long since = Long.MIN_VALUE;
+            if (link == null) {
+                _out.println("  No snapshot in a supported format (XTM, RDF/XML) found, reading all fragments");
+            }
+            else {
+                final Nodes updated = ((Element) link.getParent()).query("atom:updated", Utils.getDefaultXPathContext());
+                if (!_all && updated.size() > 0) {
+                    since = Utils.parseDateTime(updated.get(0).getValue());
+                }
+                final SnapshotItemFactory items = readSnapshot(URI.create(link.getBaseURI()).resolve(link.getAttributeValue("href")),
+                        link.getAttributeValue("type"), writer);
+                writer.flush();
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                _out.println(String.format("  Snapshot: %d items in %.2f s (%.0f items/s), %d items without identifier skipped",
+                        items.stored, seconds, items.stored / Math.max(seconds, 1e-9), items.skipped));
+            }
+            final long fragmentsStart = System.nanoTime();
+            writer.startWindows();
+            final Fragments fragments = readFragments(fragmentsFeed, since, writer);
+            writer.flush();
+            final double seconds = (System.nanoTime() - fragmentsStart) / 1e9;
+            _out.println(String.format("  Fragments: %d applied in %.2f s from %d pages (%.0f resources/s, steady state %.0f resources/s),"
+                    + " %d older than the snapshot skipped, %d errors",
+                    fragments.applied.get(), seconds, fragments.pages, fragments.applied.get() / Math.max(seconds, 1e-9),
+                    writer.getSteadyRate(fragments.applied.get() / Math.max(seconds, 1e-9)), fragments.skipped, fragments.errors.get()));
+        }
+        finally {
+            writer.close();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        _out.println(String.format("  Bootstrap: %.2f s, %d resources, %d records in %d batches, %.1f MiB",
+                seconds, store.size(), store.getRecordCount(), store.getBatchCount(), store.length() / (1024.0 * 1024.0)));
+    }
+
+    private SnapshotItemFactory readSnapshot(final URI uri, final String mediaType, final Writer writer) throws Exception {
+        final Exchange exchange = Utils.fetch(uri, FeedRole.SNAPSHOT, mediaType);
+        try {
+            if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected status code " + exchange.getStatus() + " for " + uri);
+            }
+            final SnapshotItemFactory factory = new SnapshotItemFactory(uri, writer);
+            Utils.newBuilder(factory).build(exchange.openBody(), uri.toString());
+            return factory;
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private Fragments readFragments(final URI fragmentsFeed, final long since, final Writer writer) throws Exception {
+        final Fragments fragments = new Fragments();
+        // One single-threaded lane per fetch thread, a resource is always assigned to the same lane
+        final List<ThreadPoolExecutor> fetchers = new ArrayList<ThreadPoolExecutor>(_threads);
+        for (int i=0; i<_threads; i++) {
+            fetchers.add(new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, _queueSize / _threads)), new BlockingPutPolicy()));
+        }
+        try {
+            final PagingChecker checker = new PagingChecker();
+            URI uri = since != Long.MIN_VALUE ? Utils.withSince(fragmentsFeed, since) : fragmentsFeed;
+            while (uri != null) {
+                if (!checker.visitPage(uri)) {
+                    _out.println("  Warning: The 'next' links form a cycle at " + uri);
+                    break;
+                }
+                final Document feed = Utils.fetchFeed(uri, FeedRole.FRAGMENTS_FEED);
+                fragments.pages++;
+                final URI base = URI.create(feed.getBaseURI());
+                final Nodes entries = feed.query("atom:feed/atom:entry", Utils.getDefaultXPathContext());
+                for (int i=0; i<entries.size(); i++) {
+                    final Element entry = (Element) entries.get(i);
+                    final Nodes updated = entry.query("atom:updated", Utils.getDefaultXPathContext());
+                    if (since != Long.MIN_VALUE && updated.size() > 0 && Utils.parseDateTime(updated.get(0).getValue()) < since) {
+                        // The server ignored the since parameter
+                        fragments.skipped++;
+                        continue;
+                    }
+                    final Nodes resource = entry.query("sd:resource", Utils.getDefaultXPathContext());
+                    final Element link = fragmentLink(entry);
+                    if (resource.size() == 0 || link == null) {
+                        fragments.errors.incrementAndGet();
+                        continue;
+                    }
+                    final String id = base.resolve(resource.get(0).getValue().trim()).toString();
+                    fetchers.get((id.hashCode() & 0x7fffffff) % _threads).execute(new FragmentTask(id,
+                            base.resolve(link.getAttributeValue("href")), link.getAttributeValue("type"), fragments, writer));
+                }
+                uri = Utils.nextPageURI(feed);
+            }
+        }
+        finally {
+            for (ThreadPoolExecutor fetcher: fetchers) {
+                fetcher.shutdown();
+            }
+            for (ThreadPoolExecutor fetcher: fetchers) {
+                fetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+        return fragments;
+    }
+
+    // Returns the fragment link in a supported format or the first fragment link,
+    // links with an invalid media type are skipped
+    private static Element fragmentLink(final Element entry) {
+        final Nodes links = entry.query("atom:link[@rel='" + REL_FRAGMENT + "']", Utils.getDefaultXPathContext());
+        Element first = null;
+        for (int i=0; i<links.size(); i++) {
+            final Element link = (Element) links.get(i);
+            final String type = link.getAttributeValue("type");
+            final MediaType mediaType;
+            try {
+                mediaType = type != null ? MediaType.valueOf(type) : null;
+            }
+            catch (IllegalArgumentException ex) {
+                continue;
+            }
+            if (mediaType != null && ResourceIdentifierHandler.isSupported(mediaType)) {
+                return link;
+            }
+            if (first == null) {
+                first = link;
+            }
+        }
+        return first;
+    }
+
+    private static byte[] toBytes(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            final byte[] buff = new byte[8192];
+            int len;
+            while ((len = in.read(buff)) != -1) {
+                out.write(buff, 0, len);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Counters of the fragments phase. The pages are counted by the main
+     * thread only.
+     */
+    private static final class Fragments {
+        int pages;
+        long skipped;
+        final AtomicLong applied = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+
+    /**
+     * Blocks the submitting thread until the queue of the executor has room.
+     * Unlike the caller-runs policy, it keeps the tasks of a lane in order.
+     */
+    private static final class BlockingPutPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The executor was shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ex);
+            }
+        }
+    }
+
+
+    /**
+     * Fetches a fragment and hands it to the writer.
+     */
+    private static final class FragmentTask implements Runnable {
+
+        private final String _resource;
+        private final URI _uri;
+        private final String _mediaType;
+        private final Fragments _fragments;
+        private final Writer _writer;
+
+        FragmentTask(final String resource, final URI uri, final String mediaType, final Fragments fragments, final Writer writer) {
+            _resource = resource;
+            _uri = uri;
+            _mediaType = mediaType;
+            _fragments = fragments;
+            _writer = writer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Exchange exchange = Utils.fetch(_uri, FeedRole.FRAGMENT, _mediaType != null ? _mediaType : "*/*");
+                final byte[] data;
+                try {
+                    if (exchange.getStatus() != HttpURLConnection.HTTP_OK) {
+                        _fragments.errors.incrementAndGet();
+                        return;
+                    }
+                    data = toBytes(exchange.openBody());
+                }
+                finally {
+                    exchange.close();
+                }
+                _writer.put(new MirrorStore.Record(_resource, data));
+                _fragments.applied.incrementAndGet();
+            }
+            catch (IOException ex) {
+                _fragments.errors.incrementAndGet();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Hands each top-level item of a snapshot to the writer instead of
+     * adding it to the document, so the snapshot is never kept in memory.
+     */
+    private static final class SnapshotItemFactory extends NodeFactory {
+
+        private final URI _base;
+        private final Writer _writer;
+        private int _depth;
+        long stored;
+        long skipped;
+
+        SnapshotItemFactory(final URI base, final Writer writer) {
+            _base = base;
+            _writer = writer;
+        }
+
+        @Override
+        public Element startMakingElement(final String name, final String namespace) {
+            _depth++;
+            return super.startMakingElement(name, namespace);
+        }
+
+        @Override
+        public Nodes finishMakingElement(final Element element) {
+            _depth--;
+            if (_depth != 1) {
+                return super.finishMakingElement(element);
+            }
+            final Nodes identifiers = element.query(_IDENTIFIERS, _SNAPSHOT_CTX);
+            if (identifiers.size() == 0) {
+                skipped++;
+                return new Nodes();
+            }
+            try {
+                _writer.put(new MirrorStore.Record(_base.resolve(identifiers.get(0).getValue().trim()).toString(),
+                        element.toXML().getBytes("utf-8")));
+            }
+            catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", ex);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            stored++;
+            return new Nodes();
+        }
+    }
+
+
+    /**
+     * Writes the records in batches: it waits for a record and then takes
+     * all queued records up to the batch size.
+     */
+    private static final class Writer extends Thread {
+
+        private static final MirrorStore.Record _END = new MirrorStore.Record("", new byte[0]);
+
+        private final MirrorStore _store;
+        private final int _batchSize;
+        private final BlockingQueue<MirrorStore.Record> _queue;
+        private long _submitted;
+        private long _written;
+        private IOException _failure;
+        // Records written per second since startWindows()
+        private final List<Long> _windows;
+        private long _windowStart;
+        private long _windowCount;
+
+        Writer(final MirrorStore store, final int batchSize, final int queueSize) {
+            super("sdshare-consumer-writer");
+            setDaemon(true);
+            _store = store;
+            _batchSize = batchSize;
+            _queue = new ArrayBlockingQueue<MirrorStore.Record>(queueSize);
+            _windows = new ArrayList<Long>();
+        }
+
+        void put(final MirrorStore.Record record) throws IOException, InterruptedException {
+            synchronized (this) {
+                _submitted++;
+            }
+            while (!_queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    if (_failure != null) {
+                        throw _failure;
+                    }
+                }
+            }
+        }
+
+        // Waits until all submitted records are written
+        synchronized void flush() throws IOException, InterruptedException {
+            while (_written < _submitted && _failure == null) {
+                wait();
+            }
+            if (_failure != null) {
+                throw _failure;
+            }
+        }
+
+        synchronized void startWindows() {
+            _windows.clear();
+            _windowStart = System.nanoTime();
+            _windowCount = 0;
+        }
+
+        // Returns the median of the completed windows or the provided rate if there are too few
+        synchronized double getSteadyRate(final double overall) {
+            if (_windows.size() < 3) {
+                return overall;
+            }
+            final List<Long> windows = new ArrayList<Long>(_windows.subList(1, _windows.size()));
+            Collections.sort(windows);
+            return windows.get(windows.size() / 2);
+        }
+
+        void close() throws InterruptedException {
+            while (isAlive() && !_queue.offer(_END, 100, TimeUnit.MILLISECONDS)) {
+                // The writer is busy or failed
+            }
+            join();
+        }
+
+        @Override
+        public void run() {
+            final List<MirrorStore.Record> batch = new ArrayList<MirrorStore.Record>(_batchSize);
+            try {
+                while (true) {
+                    batch.add(_queue.take());
+                    _queue.drainTo(batch, _batchSize - 1);
+                    final boolean end = batch.remove(_END);
+                    try {
+                        _store.write(batch);
+                    }
+                    catch (IOException ex) {
+                        synchronized (this) {
+                            _failure = ex;
+                            notifyAll();
+                        }
+                        return;
+                    }
+                    written(batch.size());
+                    batch.clear();
+                    if (end) {
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                // noop.
+            }
+        }
+
+        private synchronized void written(final int count) {
+            _written += count;
+            final long now = System.nanoTime();
+            if (_windowStart != 0) {
+                while (now - _windowStart >= 1000000000L) {
+                    _windows.add(_windowCount);
+                    _windowCount = 0;
+                    _windowStart += 1000000000L;
+                }
+                _windowCount += count;
+            }
+            notifyAll();
+        }
+    }
+
+}
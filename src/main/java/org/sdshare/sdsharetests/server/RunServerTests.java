@@ -15,18 +15,106 @@
  */
 package org.sdshare.sdsharetests.server;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.internal.TextListener;
 import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.sdshare.sdsharetests.IConstants;
 
 /**
  * Runs the server tests.
+ * <p>
+ * If the system property <tt>org.sdshare.baseline</tt> is set, a
+ * performance baseline of the run is written to the named file, see
+ * {@link RunBaselineComparison}. If <tt>org.sdshare.overhead</tt> is
+ * <tt>true</tt>, the client-side overhead per test and feed role is
+ * printed, see {@link ClientOverhead}. If <tt>org.sdshare.events</tt> is
+ * set, all test events are written to the named file, see {@link EventLog}.
+ * If <tt>org.sdshare.hygiene</tt> is <tt>true</tt>, the optional
+ * {@link TestPerformanceHygiene} is run as well. The
+ * <tt>org.sdshare.exemplars</tt> (default: 5) slowest exchanges per feed
+ * role are printed at the end, see {@link SlowestExchanges}.
+ * </p>
  */
 public class RunServerTests {
 
-    public static void main(String[] args) {
-        JUnitCore.main(TestOverviewFeed.class.getName(),
-                        TestCollectionFeed.class.getName(),
-                        TestFragmentsFeed.class.getName(),
-                        TestSnapshotsFeed.class.getName());
+    private static final String _HYGIENE_PROPERTY = "org.sdshare.hygiene";
+    private static final String _EXEMPLARS_PROPERTY = "org.sdshare.exemplars";
+
+    /**
+     * The test classes in execution order.
+     */
+    static final Class<?>[] TEST_CLASSES = testClasses();
+
+    public static void main(String[] args) throws Exception {
+        System.exit(run(TEST_CLASSES).wasSuccessful() ? 0 : 1);
+    }
+
+    private static Class<?>[] testClasses() {
+        final List<Class<?>> classes = new ArrayList<Class<?>>(Arrays.<Class<?>>asList(
+            TestOverviewFeed.class,
+            TestCollectionFeed.class,
+            TestFragmentsFeed.class,
+            TestSnapshotsFeed.class
+        ));
+        if (Boolean.getBoolean(_HYGIENE_PROPERTY)) {
+            classes.add(TestPerformanceHygiene.class);
+        }
+        return classes.toArray(new Class<?>[classes.size()]);
+    }
+
+    /**
+     * Runs the provided test classes and prints the results to
+     * <tt>System.out</tt>.
+     *
+     * @param classes The test classes.
+     * @return The result.
+     * @throws Exception In case of an error.
+     */
+    static Result run(final Class<?>... classes) throws Exception {
+        final String baselineFile = System.getProperty(IConstants.BASELINE_PROPERTY);
+        PerformanceBaseline baseline = null;
+        if (baselineFile != null) {
+            baseline = new PerformanceBaseline();
+            baseline.setInfo("server", String.valueOf(System.getProperty(IConstants.SERVER_ADDRESS_PROPERTY)));
+            baseline.setInfo("timestamp", String.valueOf(System.currentTimeMillis()));
+            Utils.addExchangeListener(baseline);
+        }
+        final int exemplarCount = Integer.getInteger(_EXEMPLARS_PROPERTY, 5);
+        SlowestExchanges exemplars = null;
+        if (exemplarCount > 0) {
+            exemplars = new SlowestExchanges(exemplarCount);
+            Utils.addExchangeListener(exemplars);
+        }
+        final JUnitCore junit = new JUnitCore();
+        junit.addListener(new TextListener(System.out));
+        if (EventLog.isRecording()) {
+            final EventLog.Listener events = EventLog.newListener();
+            Utils.addExchangeListener(events);
+            junit.addListener(events);
+        }
+        if (ClientOverhead.isEnabled()) {
+            junit.addListener(ClientOverhead.newTestListener());
+        }
+        final Result result = junit.run(classes);
+        if (ClientOverhead.isEnabled()) {
+            ClientOverhead.report(System.out);
+        }
+        if (exemplars != null) {
+            Utils.removeExchangeListener(exemplars);
+            exemplars.report(System.out);
+        }
+        if (baseline != null) {
+            Utils.removeExchangeListener(baseline);
+            baseline.store(new File(baselineFile));
+            System.out.println("Wrote performance baseline " + new File(baselineFile).getAbsolutePath());
+        }
+        EventLog.close();
+        return result;
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.sdshare.sdsharetests.IConstants;
+
+/**
+ * Runs the server tests in several local worker JVMs.
+ * <p>
+ * The collection feeds of the overview feed are distributed round-robin to
+ * shard files, one per worker. Each worker ({@link ShardWorker}) runs the
+ * tests for its collections and writes a result file; the results are
+ * merged into one report. The overview feed itself is tested by the first
+ * worker only.
+ * </p>
+ * <p>
+ * All <tt>org.sdshare.*</tt> and <tt>http.*</tt> system properties are
+ * passed to the workers. The files named by <tt>org.sdshare.record</tt>,
+ * <tt>org.sdshare.baseline</tt> and <tt>org.sdshare.events</tt> get the
+ * worker number as suffix, i.e. <tt>events.jsonl.0</tt>.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.shard.workers</tt>: Number of worker JVMs (default:
+ *       number of processors, at most one per collection)</li>
+ *   <li><tt>org.sdshare.shard.jvmargs</tt>: Space separated JVM arguments
+ *       for the workers, i.e. <tt>-Xmx512m</tt> (default: none)</li>
+ *   <li><tt>org.sdshare.shard.dir</tt>: Directory for the shard, result and
+ *       log files (default: a new temporary directory)</li>
+ * </ul>
+ * The process exits with status 1 if a test failed or a worker crashed.
+ * </p>
+ */
+public class RunShardedTests {
+
+    private static final String _WORKERS_PROPERTY = "org.sdshare.shard.workers";
+    private static final String _JVM_ARGS_PROPERTY = "org.sdshare.shard.jvmargs";
+    private static final String _DIR_PROPERTY = "org.sdshare.shard.dir";
+
+    // Properties which name an output file; each worker needs its own one
+    private static final String[] _FILE_PROPERTIES = {
+        HttpArchive.RECORD_PROPERTY,
+        IConstants.BASELINE_PROPERTY,
+        IConstants.EVENTS_PROPERTY
+    };
+
+    public static void main(String[] args) throws Exception {
+        final long start = System.nanoTime();
+        final List<URI> collections = new ArrayList<URI>(Utils.fetchCollectionFeedURIs());
+        final int workers = Math.max(1, Math.min(collections.size(),
+                Integer.getInteger(_WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors())));
+        final File dir = directory();
+        final PrintStream out = System.out;
+        out.println("Testing " + collections.size() + " collections with " + workers + " workers, output in " + dir);
+        final List<List<URI>> shards = new ArrayList<List<URI>>(workers);
+        for (int i=0; i<workers; i++) {
+            shards.add(new ArrayList<URI>());
+        }
+        for (int i=0; i<collections.size(); i++) {
+            shards.get(i % workers).add(collections.get(i));
+        }
+        for (int i=0; i<workers; i++) {
+            // A result file of an earlier run would hide a crashed worker
+            final File resultFile = new File(dir, "result-" + i + ".properties");
+            if (resultFile.exists() && !resultFile.delete()) {
+                throw new IOException("Cannot delete " + resultFile);
+            }
+        }
+        final Process[] processes = new Process[workers];
+        final Thread[] pumps = new Thread[workers];
+        for (int i=0; i<workers; i++) {
+            final File shardFile = new File(dir, "shard-" + i + ".txt");
+            writeURIs(shardFile, shards.get(i));
+            final ProcessBuilder builder = new ProcessBuilder(command(i, shardFile, new File(dir, "result-" + i + ".properties")));
+            builder.redirectErrorStream(true);
+            processes[i] = builder.start();
+            processes[i].getOutputStream().close();
+            pumps[i] = pump(processes[i].getInputStream(), new File(dir, "worker-" + i + ".log"));
+        }
+        boolean success = true;
+        long tests = 0;
+        long failures = 0;
+        long requests = 0;
+        long bytes = 0;
+        final List<String> failed = new ArrayList<String>();
+        out.println(String.format("%6s %11s %6s %9s %9s %10s %9s", "worker", "collections", "tests", "failures", "requests", "MiB", "seconds"));
+        for (int i=0; i<workers; i++) {
+            final int exitCode = processes[i].waitFor();
+            pumps[i].join();
+            final File resultFile = new File(dir, "result-" + i + ".properties");
+            if (!resultFile.exists()) {
+                success = false;
+                failed.add("Worker " + i + " crashed with exit code " + exitCode + ", see " + new File(dir, "worker-" + i + ".log"));
+                continue;
+            }
+            final Properties result = load(resultFile);
+            final long workerTests = Long.parseLong(result.getProperty("tests"));
+            final long workerFailures = Long.parseLong(result.getProperty("failures"));
+            final long workerRequests = Long.parseLong(result.getProperty("requests"));
+            final long workerBytes = Long.parseLong(result.getProperty("bytes"));
+            out.println(String.format("%6d %11d %6d %9d %9d %10.1f %9.1f", i, shards.get(i).size(), workerTests,
+                    workerFailures, workerRequests, workerBytes / (1024.0 * 1024.0),
+                    Long.parseLong(result.getProperty("runtime_ms")) / 1000.0));
+            tests += workerTests;
+            failures += workerFailures;
+            requests += workerRequests;
+            bytes += workerBytes;
+            for (int n=0; n<workerFailures; n++) {
+                failed.add(result.getProperty("failure." + n + ".test") + ": " + result.getProperty("failure." + n + ".message"));
+            }
+            success &= exitCode == 0;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        out.println(String.format("%6s %11d %6d %9d %9d %10.1f %9.1f", "total", collections.size(), tests, failures,
+                requests, bytes / (1024.0 * 1024.0), seconds));
+        out.println(String.format("Throughput: %.1f requests/s, %.1f MiB/s", requests / seconds, bytes / (1024.0 * 1024.0) / seconds));
+        for (String failure: failed) {
+            out.println("FAILED " + failure);
+        }
+        out.println(success ? "OK (" + tests + " tests)" : "FAILURES!!! Tests run: " + tests + ", Failures: " + failures);
+        System.exit(success ? 0 : 1);
+    }
+
+    private static List<String> command(final int worker, final File shardFile, final File resultFile) {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        final String jvmArgs = System.getProperty(_JVM_ARGS_PROPERTY);
+        if (jvmArgs != null) {
+            for (String arg: jvmArgs.trim().split("\\s+")) {
+                if (arg.length() > 0) {
+                    command.add(arg);
+                }
+            }
+        }
+        final Properties props = System.getProperties();
+        for (String key: props.stringPropertyNames()) {
+            if ((key.startsWith("org.sdshare.") && !key.startsWith("org.sdshare.shard")) || key.startsWith("http.")) {
+                String value = props.getProperty(key);
+                for (String fileProperty: _FILE_PROPERTIES) {
+                    if (fileProperty.equals(key)) {
+                        value = value + "." + worker;
+                    }
+                }
+                command.add("-D" + key + "=" + value);
+            }
+        }
+        command.add("-D" + IConstants.SHARD_PROPERTY + "=" + shardFile.getAbsolutePath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        command.add(resultFile.getAbsolutePath());
+        command.add(String.valueOf(worker == 0));
+        return command;
+    }
+
+    private static File directory() throws IOException {
+        final String name = System.getProperty(_DIR_PROPERTY);
+        if (name != null) {
+            final File dir = new File(name);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+            return dir;
+        }
+        final File dir = File.createTempFile("sdshare-shards", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        return dir;
+    }
+
+    private static void writeURIs(final File file, final Collection<URI> uris) throws IOException {
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
+        try {
+            for (URI uri: uris) {
+                writer.println(uri);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static Properties load(final File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return props;
+    }
+
+    // Copies the output of a worker to a log file
+    private static Thread pump(final InputStream in, final File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        final Thread thread = new Thread("sdshare-shard-" + file.getName()) {
+            @Override
+            public void run() {
+                final byte[] buff = new byte[8192];
+                try {
+                    int len;
+                    while ((len = in.read(buff)) != -1) {
+                        out.write(buff, 0, len);
+                    }
+                }
+                catch (IOException ex) {
+                    // The worker died, its exit code is reported
+                }
+                finally {
+                    try {
+                        out.close();
+                    }
+                    catch (IOException ex) {
+                        // noop.
+                    }
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+/**
+ * Worker process of {@link RunShardedTests}.
+ * <p>
+ * Runs the tests for the collections listed in the shard file (see
+ * {@link org.sdshare.sdsharetests.IConstants#SHARD_PROPERTY}) and writes
+ * the result to a properties file.
+ * </p>
+ * <p>
+ * Usage: <tt>ShardWorker &lt;result file&gt; &lt;include overview test: true|false&gt;</tt>
+ * </p>
+ */
+public class ShardWorker {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: ShardWorker <result file> <include overview test: true|false>");
+            System.exit(2);
+        }
+        final List<Class<?>> classes = new ArrayList<Class<?>>(Arrays.asList(RunServerTests.TEST_CLASSES));
+        if (!Boolean.parseBoolean(args[1])) {
+            // The overview feed is checked by one worker only
+            classes.remove(TestOverviewFeed.class);
+        }
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        Utils.addExchangeListener(new IExchangeListener() {
+            @Override
+            public void exchangeCompleted(final Exchange exchange) {
+                requests.incrementAndGet();
+                bytes.addAndGet(exchange.getBodyLength());
+            }
+
+            @Override
+            public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+                requests.incrementAndGet();
+            }
+        });
+        final Result result = RunServerTests.run(classes.toArray(new Class<?>[classes.size()]));
+        final Properties props = new Properties();
+        props.setProperty("tests", String.valueOf(result.getRunCount()));
+        props.setProperty("failures", String.valueOf(result.getFailureCount()));
+        props.setProperty("ignored", String.valueOf(result.getIgnoreCount()));
+        props.setProperty("runtime_ms", String.valueOf(result.getRunTime()));
+        props.setProperty("requests", String.valueOf(requests.get()));
+        props.setProperty("bytes", String.valueOf(bytes.get()));
+        int i = 0;
+        for (Failure failure: result.getFailures()) {
+            props.setProperty("failure." + i + ".test", failure.getTestHeader());
+            props.setProperty("failure." + i + ".message", String.valueOf(failure.getMessage()));
+            i++;
+        }
+        final OutputStream out = new FileOutputStream(new File(args[0]));
+        try {
+            props.store(out, "SDShare shard result");
+        }
+        finally {
+            out.close();
+        }
+        System.exit(result.wasSuccessful() ? 0 : 1);
+    }
+
+}
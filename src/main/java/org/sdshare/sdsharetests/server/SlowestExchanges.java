@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the slowest exchanges per {@link FeedRole} as exemplars for the
+ * tail latencies, so a slow page or fragment can be requested again.
+ * <p>
+ * Each role has a min-heap of at most <tt>k</tt> exemplars ordered by the
+ * total time; an exchange faster than the fastest kept exemplar is dropped
+ * without locking once the heap is full. The bodies are not kept.
+ * </p>
+ */
+final class SlowestExchanges implements IExchangeListener {
+
+    private final int _k;
+    private final Map<FeedRole, Slot> _slots;
+
+    /**
+     * Creates an instance.
+     *
+     * @param k The max. number of exemplars per role.
+     */
+    public SlowestExchanges(final int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Expected k > 0, got " + k);
+        }
+        _k = k;
+        _slots = new EnumMap<FeedRole, Slot>(FeedRole.class);
+        for (FeedRole role: FeedRole.values()) {
+            _slots.put(role, new Slot());
+        }
+    }
+
+    @Override
+    public void exchangeCompleted(final Exchange exchange) {
+        final Slot slot = _slots.get(exchange.getRole());
+        final long nanos = exchange.getTotalNanos();
+        if (nanos <= slot.threshold) {
+            return;
+        }
+        synchronized (slot) {
+            if (slot.heap.size() == _k) {
+                if (nanos <= slot.heap.peek().totalNanos) {
+                    return;
+                }
+                slot.heap.poll();
+            }
+            slot.heap.add(new Exemplar(exchange));
+            if (slot.heap.size() == _k) {
+                slot.threshold = slot.heap.peek().totalNanos;
+            }
+        }
+    }
+
+    @Override
+    public void exchangeFailed(final URI uri, final FeedRole role, final Exception ex) {
+        // No timings available
+    }
+
+    /**
+     * Returns the exemplars of the provided role, slowest first.
+     *
+     * @param role The role.
+     * @return The exemplars.
+     */
+    public List<Exemplar> getExemplars(final FeedRole role) {
+        final Slot slot = _slots.get(role);
+        final List<Exemplar> result;
+        synchronized (slot) {
+            result = new ArrayList<Exemplar>(slot.heap);
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Prints the exemplars of each role with the request and response headers
+     * and a <tt>curl</tt> command line to repeat the request.
+     *
+     * @param out The stream to write to.
+     */
+    public void report(final PrintStream out) {
+        out.println();
+        out.println("Slowest exchanges per role (total = header + body ms)");
+        for (FeedRole role: FeedRole.values()) {
+            final List<Exemplar> exemplars = getExemplars(role);
+            if (exemplars.isEmpty()) {
+                continue;
+            }
+            out.println(role.label());
+            for (Exemplar exemplar: exemplars) {
+                out.println(String.format("  %9.1f = %8.1f + %8.1f  %3d %10d bytes  %s", exemplar.totalNanos / 1e6,
+                        exemplar.headerNanos / 1e6, (exemplar.totalNanos - exemplar.headerNanos) / 1e6,
+                        exemplar.status, exemplar.bodyLength, exemplar.uri));
+                out.println("      started " + Utils.formatDateTime(exemplar.startMillis));
+                final StringBuilder curl = new StringBuilder("curl -s -o /dev/null -w '%{time_starttransfer} %{time_total}\\n'");
+                for (Map.Entry<String, String> header: exemplar.requestHeaders.entrySet()) {
+                    out.println("      > " + header.getKey() + ": " + header.getValue());
+                    curl.append(" -H '").append(header.getKey()).append(": ").append(header.getValue()).append('\'');
+                }
+                for (Map.Entry<String, List<String>> header: exemplar.responseHeaders.entrySet()) {
+                    for (String value: header.getValue()) {
+                        out.println("      < " + (header.getKey() != null ? header.getKey() + ": " : "") + value);
+                    }
+                }
+                out.println("      " + curl.append(" '").append(exemplar.uri).append('\''));
+            }
+        }
+    }
+
+
+    /**
+     * The exemplars of a role. The threshold is the total time of the
+     * fastest exemplar once the heap is full, read without locking.
+     */
+    private static final class Slot {
+        final PriorityQueue<Exemplar> heap = new PriorityQueue<Exemplar>();
+        volatile long threshold = Long.MIN_VALUE;
+    }
+
+
+    /**
+     * An exchange without its body.
+     */
+    static final class Exemplar implements Comparable<Exemplar> {
+
+        final URI uri;
+        final int status;
+        final Map<String, String> requestHeaders;
+        final Map<String, List<String>> responseHeaders;
+        final long bodyLength;
+        final long startMillis;
+        final long headerNanos;
+        final long totalNanos;
+
+        Exemplar(final Exchange exchange) {
+            uri = exchange.getURI();
+            status = exchange.getStatus();
+            requestHeaders = new LinkedHashMap<String, String>(exchange.getRequestHeaders());
+            responseHeaders = new LinkedHashMap<String, List<String>>(exchange.getHeaders());
+            bodyLength = exchange.getBodyLength();
+            startMillis = exchange.getStartMillis();
+            headerNanos = exchange.getHeaderNanos();
+            totalNanos = exchange.getTotalNanos();
+        }
+
+        @Override
+        public int compareTo(final Exemplar other) {
+            return totalNanos < other.totalNanos ? -1 : (totalNanos == other.totalNanos ? 0 : 1);
+        }
+    }
+
+}
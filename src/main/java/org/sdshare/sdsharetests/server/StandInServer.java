@@ -0,0 +1,499 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.sdshare.sdsharetests.IConstants;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal local SDShare server which changes its resources on a schedule.
+ * <p>
+ * Each collection starts with a number of resources; changes are created
+ * at a fixed rate, each either updates a random resource or adds a new
+ * one. A change gets its <tt>atom:updated</tt> time when it is created but
+ * becomes visible in the fragments feed only after a random, exponentially
+ * distributed delay, which simulates the propagation lag of a real server.
+ * The fragments feeds list the latest visible change per resource, oldest
+ * first, support the <tt>since</tt> parameter and are paged by keyset.
+ * Snapshots and fragments are served as XTM 2.0.
+ * </p>
+ * <p>
+ * The stand-in is started by the tools which support
+ * <tt>org.sdshare.standin</tt>, see {@link #startIfRequested()}.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ *   <li><tt>org.sdshare.standin.port</tt>: Port (default: 0, any free port)</li>
+ *   <li><tt>org.sdshare.standin.collections</tt>: Number of collections (default: 2)</li>
+ *   <li><tt>org.sdshare.standin.resources</tt>: Initial resources per collection (default: 1000)</li>
+ *   <li><tt>org.sdshare.standin.rate</tt>: Changes per second across all collections (default: 10)</li>
+ *   <li><tt>org.sdshare.standin.delay</tt>: Mean delay in milliseconds until a change is visible (default: 500)</li>
+ *   <li><tt>org.sdshare.standin.pagesize</tt>: Entries per fragments feed page (default: 100)</li>
+ * </ul>
+ * </p>
+ */
+final class StandInServer implements IConstants {
+
+    private static final String _ENABLED_PROPERTY = "org.sdshare.standin";
+    private static final String _PORT_PROPERTY = "org.sdshare.standin.port";
+    private static final String _COLLECTIONS_PROPERTY = "org.sdshare.standin.collections";
+    private static final String _RESOURCES_PROPERTY = "org.sdshare.standin.resources";
+    private static final String _RATE_PROPERTY = "org.sdshare.standin.rate";
+    private static final String _DELAY_PROPERTY = "org.sdshare.standin.delay";
+    private static final String _PAGE_SIZE_PROPERTY = "org.sdshare.standin.pagesize";
+
+    private static final String _MEDIA_TYPE_XTM = "application/x-tm+xml;version=2.0";
+
+    // Share of the changes which add a new resource
+    private static final double _NEW_RESOURCE_RATIO = 0.2;
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final ScheduledExecutorService _scheduler;
+    private final Collection[] _collections;
+    private final Random _random;
+    private final double _meanDelay;
+    private final int _pageSize;
+    private final String _base;
+
+    private StandInServer() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("localhost", Integer.getInteger(_PORT_PROPERTY, 0)), 0);
+        _base = "http://localhost:" + _server.getAddress().getPort();
+        _collections = new Collection[Math.max(1, Integer.getInteger(_COLLECTIONS_PROPERTY, 2))];
+        final long now = System.currentTimeMillis();
+        final int resources = Integer.getInteger(_RESOURCES_PROPERTY, 1000);
+        for (int i=0; i<_collections.length; i++) {
+            _collections[i] = new Collection(i + 1, resources, now);
+        }
+        _random = new Random();
+        _meanDelay = Double.parseDouble(System.getProperty(_DELAY_PROPERTY, "500"));
+        _pageSize = Math.max(1, Integer.getInteger(_PAGE_SIZE_PROPERTY, 100));
+        _executor = Executors.newFixedThreadPool(8, daemonThreads("sdshare-standin"));
+        _server.setExecutor(_executor);
+        _server.createContext("/", new Handler());
+        _scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("sdshare-standin-changes"));
+    }
+
+    /**
+     * Starts a stand-in server if the system property
+     * <tt>org.sdshare.standin</tt> is <tt>true</tt> and points the
+     * system property {@link IConstants#SERVER_ADDRESS_PROPERTY} to it.
+     *
+     * @return The server or <tt>null</tt> if no stand-in was requested.
+     * @throws IOException If the server cannot be started.
+     */
+    public static StandInServer startIfRequested() throws IOException {
+        if (!Boolean.getBoolean(_ENABLED_PROPERTY)) {
+            return null;
+        }
+        final StandInServer server = new StandInServer();
+        server.start();
+        System.setProperty(SERVER_ADDRESS_PROPERTY, server.getAddress().toString());
+        return server;
+    }
+
+    private void start() {
+        _server.start();
+        final double rate = Double.parseDouble(System.getProperty(_RATE_PROPERTY, "10"));
+        if (rate > 0) {
+            _scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    change();
+                }
+            }, 0, Math.max(1, (long) (1e6 / rate)), TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Stops creating changes and shuts the server down.
+     */
+    public void stop() {
+        _scheduler.shutdownNow();
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Returns the IRI of the overview feed.
+     *
+     * @return The server address.
+     */
+    public URI getAddress() {
+        return URI.create(_base + "/");
+    }
+
+    // Called by the scheduler thread only
+    private void change() {
+        final Collection collection = _collections[_random.nextInt(_collections.length)];
+        final boolean addResource = _random.nextDouble() < _NEW_RESOURCE_RATIO;
+        final long delay = (long) (-Math.log(1 - _random.nextDouble()) * _meanDelay);
+        collection.change(addResource ? -1 : _random.nextInt(Integer.MAX_VALUE), delay);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private int _count;
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, name + "-" + _count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+
+    /**
+     * A collection and its change log.
+     */
+    private final class Collection {
+
+        private final int _number;
+        private final String _uri;
+        // Latest change per resource, index = resource number
+        private final List<Change> _latest;
+        // Changes which are not visible yet
+        private final List<Change> _pending;
+        private long _sequence;
+        private int _resources;
+
+        Collection(final int number, final int resources, final long created) {
+            _number = number;
+            _uri = _base + "/c" + number;
+            _latest = new ArrayList<Change>(resources);
+            _pending = new ArrayList<Change>();
+            for (int i=0; i<resources; i++) {
+                _latest.add(new Change(i, _sequence++, created, created));
+            }
+            _resources = resources;
+        }
+
+        /**
+         * Creates a change which becomes visible after the provided delay.
+         *
+         * @param seed <tt>-1</tt> to add a resource, otherwise a random
+         *          number which selects the resource to update.
+         * @param delay The delay in milliseconds.
+         */
+        synchronized void change(final int seed, final long delay) {
+            final int resource = seed < 0 || _resources == 0 ? _resources++ : seed % _resources;
+            final long now = System.currentTimeMillis();
+            _pending.add(new Change(resource, _sequence++, now, now + delay));
+        }
+
+        // Moves the changes which became visible to the feed
+        private void publish(final long now) {
+            for (int i=_pending.size()-1; i>=0; i--) {
+                final Change change = _pending.get(i);
+                if (change.visible <= now) {
+                    _pending.remove(i);
+                    while (_latest.size() <= change.resource) {
+                        _latest.add(null);
+                    }
+                    final Change previous = _latest.get(change.resource);
+                    if (previous == null || previous.updated <= change.updated) {
+                        _latest.set(change.resource, change);
+                    }
+                }
+            }
+        }
+
+        // Returns the visible changes updated at or after since and (by keyset) after the provided change
+        synchronized List<Change> changes(final long since, final long afterUpdated, final long afterSequence) {
+            publish(System.currentTimeMillis());
+            final List<Change> result = new ArrayList<Change>();
+            for (Change change: _latest) {
+                if (change != null && change.updated >= since
+                        && (change.updated > afterUpdated || (change.updated == afterUpdated && change.sequence > afterSequence))) {
+                    result.add(change);
+                }
+            }
+            Collections.sort(result);
+            return result;
+        }
+
+        String subject(final int resource) {
+            return "http://standin.sdshare.org/c" + _number + "/r" + resource;
+        }
+    }
+
+
+    /**
+     * A change of a resource.
+     */
+    private static final class Change implements Comparable<Change> {
+
+        final int resource;
+        final long sequence;
+        final long updated;
+        final long visible;
+
+        Change(final int resource, final long sequence, final long updated, final long visible) {
+            this.resource = resource;
+            this.sequence = sequence;
+            this.updated = updated;
+            this.visible = visible;
+        }
+
+        @Override
+        public int compareTo(final Change other) {
+            if (updated != other.updated) {
+                return updated < other.updated ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+
+    /**
+     * Serves the feeds, snapshots and fragments.
+     * <p>
+     * Paths: <tt>/</tt>, <tt>/c{n}</tt>, <tt>/c{n}/fragments</tt>,
+     * <tt>/c{n}/snapshots</tt>, <tt>/c{n}/snapshot</tt> and
+     * <tt>/c{n}/fragment/{r}</tt>.
+     * </p>
+     */
+    private final class Handler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                final String accept = exchange.getRequestHeaders().getFirst("Accept");
+                final String path = exchange.getRequestURI().getPath();
+                final Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+                final String[] segments = path.substring(1).split("/");
+                if (path.equals("/")) {
+                    send(exchange, accept, MEDIA_TYPE_ATOM_XML, overviewFeed());
+                    return;
+                }
+                final Collection collection = collection(segments[0]);
+                if (collection == null) {
+                    sendError(exchange, 404);
+                }
+                else if (segments.length == 1) {
+                    send(exchange, accept, MEDIA_TYPE_ATOM_XML, collectionFeed(collection));
+                }
+                else if (segments.length == 2 && "fragments".equals(segments[1])) {
+                    send(exchange, accept, MEDIA_TYPE_ATOM_XML, fragmentsFeed(collection, params));
+                }
+                else if (segments.length == 2 && "snapshots".equals(segments[1])) {
+                    send(exchange, accept, MEDIA_TYPE_ATOM_XML, snapshotsFeed(collection));
+                }
+                else if (segments.length == 2 && "snapshot".equals(segments[1])) {
+                    send(exchange, accept, _MEDIA_TYPE_XTM, snapshot(collection));
+                }
+                else if (segments.length == 3 && "fragment".equals(segments[1])) {
+                    send(exchange, accept, _MEDIA_TYPE_XTM, fragment(collection, Integer.parseInt(segments[2])));
+                }
+                else {
+                    sendError(exchange, 404);
+                }
+            }
+            catch (IllegalArgumentException ex) {
+                sendError(exchange, 400);
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        private Collection collection(final String segment) {
+            if (!segment.startsWith("c")) {
+                return null;
+            }
+            try {
+                final int n = Integer.parseInt(segment.substring(1));
+                return n >= 1 && n <= _collections.length ? _collections[n - 1] : null;
+            }
+            catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        private String overviewFeed() {
+            final StringBuilder buff = feed(_base + "/", "Stand-in overview feed");
+            for (Collection collection: _collections) {
+                buff.append("<entry><id>").append(collection._uri).append("</id><title>Collection ").append(collection._number)
+                    .append("</title><updated>").append(Utils.formatDateTime(System.currentTimeMillis())).append("</updated>")
+                    .append(link(REL_ALTERNATE, collection._uri, MEDIA_TYPE_ATOM_XML))
+                    .append(link(REL_COLLECTION_FEED, collection._uri, MEDIA_TYPE_ATOM_XML))
+                    .append("</entry>");
+            }
+            return buff.append("</feed>").toString();
+        }
+
+        private String collectionFeed(final Collection collection) {
+            final String updated = Utils.formatDateTime(System.currentTimeMillis());
+            return feed(collection._uri, "Collection " + collection._number)
+                .append("<entry><id>").append(collection._uri).append("/fragments</id><title>Fragments</title><updated>")
+                .append(updated).append("</updated>").append(link(REL_FRAGMENTS_FEED, collection._uri + "/fragments", MEDIA_TYPE_ATOM_XML))
+                .append("</entry>")
+                .append("<entry><id>").append(collection._uri).append("/snapshots</id><title>Snapshots</title><updated>")
+                .append(updated).append("</updated>").append(link(REL_SNAPSHOTS_FEED, collection._uri + "/snapshots", MEDIA_TYPE_ATOM_XML))
+                .append("</entry>")
+                .append("</feed>").toString();
+        }
+
+        private String snapshotsFeed(final Collection collection) {
+            return feed(collection._uri + "/snapshots", "Snapshots of collection " + collection._number)
+                .append("<entry><id>").append(collection._uri).append("/snapshot</id><title>Current snapshot</title><updated>")
+                .append(Utils.formatDateTime(System.currentTimeMillis())).append("</updated>")
+                .append(link(REL_SNAPSHOT, collection._uri + "/snapshot", _MEDIA_TYPE_XTM))
+                .append("</entry>")
+                .append("</feed>").toString();
+        }
+
+        private String fragmentsFeed(final Collection collection, final Map<String, String> params) {
+            final String sinceParam = params.get("since");
+            final long since = sinceParam != null ? Utils.parseDateTime(sinceParam) : Long.MIN_VALUE;
+            long afterUpdated = Long.MIN_VALUE;
+            long afterSequence = Long.MIN_VALUE;
+            final String after = params.get("after");
+            if (after != null) {
+                final int idx = after.indexOf('-');
+                if (idx < 0) {
+                    throw new IllegalArgumentException("Invalid 'after' parameter: " + after);
+                }
+                afterUpdated = Long.parseLong(after.substring(0, idx));
+                afterSequence = Long.parseLong(after.substring(idx + 1));
+            }
+            final List<Change> changes = collection.changes(since, afterUpdated, afterSequence);
+            final List<Change> page = changes.subList(0, Math.min(_pageSize, changes.size()));
+            final StringBuilder buff = feed(collection._uri + "/fragments", "Fragments of collection " + collection._number);
+            if (changes.size() > page.size()) {
+                final Change last = page.get(page.size() - 1);
+                String next = collection._uri + "/fragments?after=" + last.updated + "-" + last.sequence;
+                if (sinceParam != null) {
+                    next += "&since=" + Utils.formatDateTime(since);
+                }
+                buff.append("<link rel=\"next\" href=\"").append(escape(next)).append("\"/>");
+            }
+            for (Change change: page) {
+                final String fragment = collection._uri + "/fragment/" + change.resource;
+                buff.append("<entry><id>").append(fragment).append("?v=").append(change.sequence)
+                    .append("</id><title>Resource ").append(change.resource)
+                    .append("</title><updated>").append(Utils.formatDateTime(change.updated)).append("</updated>")
+                    .append("<sd:resource>").append(collection.subject(change.resource)).append("</sd:resource>")
+                    .append(link(REL_ALTERNATE, fragment, _MEDIA_TYPE_XTM))
+                    .append(link(REL_FRAGMENT, fragment, _MEDIA_TYPE_XTM))
+                    .append("</entry>");
+            }
+            return buff.append("</feed>").toString();
+        }
+
+        private String snapshot(final Collection collection) {
+            final List<Change> changes = collection.changes(Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE);
+            final StringBuilder buff = new StringBuilder(changes.size() * 120 + 100);
+            buff.append("<topicMap xmlns=\"http://www.topicmaps.org/xtm/\" version=\"2.0\">");
+            for (Change change: changes) {
+                topic(buff, collection, change);
+            }
+            return buff.append("</topicMap>").toString();
+        }
+
+        private String fragment(final Collection collection, final int resource) {
+            for (Change change: collection.changes(Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE)) {
+                if (change.resource == resource) {
+                    final StringBuilder buff = new StringBuilder(200);
+                    buff.append("<topicMap xmlns=\"http://www.topicmaps.org/xtm/\" version=\"2.0\">");
+                    topic(buff, collection, change);
+                    return buff.append("</topicMap>").toString();
+                }
+            }
+            return null;
+        }
+
+        private void topic(final StringBuilder buff, final Collection collection, final Change change) {
+            buff.append("<topic id=\"r").append(change.resource).append("\"><subjectIdentifier href=\"")
+                .append(collection.subject(change.resource)).append("\"/><name><value>Resource ")
+                .append(change.resource).append(" (version ").append(change.sequence).append(")</value></name></topic>");
+        }
+
+        private StringBuilder feed(final String id, final String title) {
+            return new StringBuilder(8192)
+                .append("<feed xmlns=\"").append(NS_ATOM).append("\" xmlns:sd=\"").append(NS_SDSHARE).append("\">")
+                .append("<id>").append(escape(id)).append("</id><title>").append(title).append("</title>")
+                .append("<updated>").append(Utils.formatDateTime(System.currentTimeMillis())).append("</updated>")
+                .append("<author><name>SDShare stand-in</name></author>");
+        }
+
+        private String link(final String rel, final String href, final String type) {
+            return "<link rel=\"" + rel + "\" href=\"" + escape(href) + "\" type=\"" + type + "\"/>";
+        }
+
+        private Map<String, String> params(final String query) throws IOException {
+            final Map<String, String> result = new HashMap<String, String>();
+            if (query == null) {
+                return result;
+            }
+            for (String param: query.split("&")) {
+                final int idx = param.indexOf('=');
+                if (idx > 0) {
+                    result.put(URLDecoder.decode(param.substring(0, idx), "utf-8"), URLDecoder.decode(param.substring(idx + 1), "utf-8"));
+                }
+            }
+            return result;
+        }
+
+        private void send(final HttpExchange exchange, final String accept, final String mediaType, final String body) throws IOException {
+            if (body == null) {
+                sendError(exchange, 404);
+                return;
+            }
+            if (accept != null && !accept.contains("*/*") && !accept.contains(mediaType.split(";")[0])) {
+                sendError(exchange, 406);
+                return;
+            }
+            final byte[] bytes = body.getBytes("utf-8");
+            exchange.getResponseHeaders().set("Content-Type", mediaType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+
+        private void sendError(final HttpExchange exchange, final int status) throws IOException {
+            exchange.sendResponseHeaders(status, -1);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+/**
+ * Internal statistics utilities.
+ */
+final class Statistics {
+
+    private Statistics() {
+        // noop.
+    }
+
+    /**
+     * Returns the two-sided p-value of Welch's t-test for the difference of
+     * two means.
+     *
+     * @param mean1 Mean of the first sample.
+     * @param var1 Variance of the first sample.
+     * @param n1 Size of the first sample.
+     * @param mean2 Mean of the second sample.
+     * @param var2 Variance of the second sample.
+     * @param n2 Size of the second sample.
+     * @return The p-value or <tt>1</tt> if a sample has less than two values.
+     */
+    public static double welchTTest(final double mean1, final double var1, final long n1,
+                                    final double mean2, final double var2, final long n2) {
+        if (n1 < 2 || n2 < 2) {
+            return 1;
+        }
+        final double se1 = var1 / n1;
+        final double se2 = var2 / n2;
+        final double se = se1 + se2;
+        if (se == 0) {
+            return mean1 == mean2 ? 1 : 0;
+        }
+        final double t = (mean2 - mean1) / Math.sqrt(se);
+        final double df = se * se / (se1 * se1 / (n1 - 1) + se2 * se2 / (n2 - 1));
+        // P(|T| > t) = I_x(df/2, 1/2) with x = df / (df + t^2)
+        return regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+    }
+
+    /**
+     * Regularized incomplete beta function I<sub>x</sub>(a, b), evaluated by
+     * its continued fraction (Lentz's method).
+     */
+    static double regularizedIncompleteBeta(final double x, final double a, final double b) {
+        if (x <= 0) {
+            return 0;
+        }
+        if (x >= 1) {
+            return 1;
+        }
+        if (x > (a + 1) / (a + b + 2)) {
+            return 1 - regularizedIncompleteBeta(1 - x, b, a);
+        }
+        final double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+                + a * Math.log(x) + b * Math.log(1 - x)) / a;
+        final double tiny = 1e-30;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double f = d;
+        for (int m=1; m<=300; m++) {
+            // Even step
+            double numerator = m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m));
+            d = 1 + numerator * d;
+            d = 1 / (Math.abs(d) < tiny ? tiny : d);
+            c = 1 + numerator / c;
+            c = Math.abs(c) < tiny ? tiny : c;
+            f *= c * d;
+            // Odd step
+            numerator = -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+            d = 1 + numerator * d;
+            d = 1 / (Math.abs(d) < tiny ? tiny : d);
+            c = 1 + numerator / c;
+            c = Math.abs(c) < tiny ? tiny : c;
+            final double delta = c * d;
+            f *= delta;
+            if (Math.abs(delta - 1) < 1e-12) {
+                break;
+            }
+        }
+        return front * f;
+    }
+
+    /**
+     * Lanczos approximation of ln(Gamma(x)) for x &gt; 0.
+     */
+    static double logGamma(final double x) {
+        final double[] coefficients = {
+            76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5
+        };
+        double y = x;
+        final double tmp = x + 5.5 - (x + 0.5) * Math.log(x + 5.5);
+        double series = 1.000000000190015;
+        for (double coefficient: coefficients) {
+            series += coefficient / ++y;
+        }
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+}
@@ -66,7 +66,7 @@ public class TestCollectionFeed extends AbstractServerTestCase {
      */
     @Test
     public void testCollectionFeed() throws Exception {
-        final Document feed = super.fetchAtomFeedAsDOM(_uri);
+        final Document feed = super.fetchAtomFeedAsDOM(_uri, FeedRole.COLLECTION_FEED);
         // Fetch all links which point to a collection.
         final Nodes fragmentFeedLinks = query(feed, "atom:feed/atom:entry/atom:link[@rel='" + REL_FRAGMENTS_FEED + "'][not(@type) or @type='application/atom+xml']");
         assertEquals("Exected one fragment feed link in " + feed.getBaseURI(), 1, fragmentFeedLinks.size());
@@ -78,11 +78,12 @@ public class TestCollectionFeed extends AbstractServerTestCase {
             Attribute attr = link.getAttribute("href");
             assertNotNull("No href attribute available", attr);
             final URI href = URI.create(feed.getBaseURI()).resolve(attr.getValue());
+            final FeedRole role = FeedRole.forRelation(link.getAttributeValue("rel"));
             attr = link.getAttribute("type");
             // Assume Atom iff the "type" attribute is not provided
             final String mediaType = attr != null ? attr.getValue() : IConstants.MEDIA_TYPE_ATOM_XML;
-            super.testURIRetrieval(href, mediaType);
-            super.testWithUnknownMediaType(href);
+            super.testURIRetrieval(href, role, mediaType);
+            super.testWithUnknownMediaType(href, role);
         }
     }
 
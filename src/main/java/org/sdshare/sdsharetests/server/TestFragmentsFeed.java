@@ -22,6 +22,7 @@ import java.util.Collection;
 import nu.xom.Attribute;
 import nu.xom.Document;
 import nu.xom.Element;
+import nu.xom.Node;
 import nu.xom.Nodes;
 
 import org.junit.Test;
@@ -31,8 +32,6 @@ import org.junit.runners.Parameterized.Parameters;
 import static org.junit.Assert.*;
 
 import org.sdshare.sdsharetests.MediaType;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 
 /**
@@ -42,8 +41,6 @@ import org.slf4j.LoggerFactory;
 @RunWith(Parameterized.class)
 public class TestFragmentsFeed extends AbstractServerTestCase {
 
-    private static final Logger LOG = LoggerFactory.getLogger(TestFragmentsFeed.class);
-
     private final URI _uri;
 
     public TestFragmentsFeed(final URI uri) {
@@ -66,16 +63,70 @@ public class TestFragmentsFeed extends AbstractServerTestCase {
 
     @Test
     public void testFragmentFeed() throws Exception {
-        check(_uri);
+        final PagingChecker checker = new PagingChecker();
+        final PagingProfile profile = new PagingProfile(_uri);
+        URI uri = _uri;
+        while (uri != null) {
+            assertTrue("The 'next' links form a cycle, " + uri + " was already visited",
+                        checker.visitPage(uri));
+            final Exchange exchange = super.fetchAtomFeed(uri, FeedRole.FRAGMENTS_FEED);
+            try {
+                profile.add(exchange);
+                uri = check(super.toAtomDOM(exchange), checker);
+            }
+            finally {
+                exchange.close();
+            }
+        }
+        if (checker.hasSuspects()) {
+            confirmEntries(checker);
+        }
+        if (profile.isDegrading()) {
+            EventLog.warning(TestFragmentsFeed.class, _uri, profile.report());
+        }
+        else {
+            EventLog.info(TestFragmentsFeed.class, _uri, profile.report());
+        }
     }
 
-    // we use this submethod so we can recurse along 'next' links
-    private void check(URI uri) throws Exception {
-        final Document feed = super.fetchAtomFeedAsDOM(uri);
+    // reads the pages a second time to confirm the duplicates the checker suspects
+    private void confirmEntries(final PagingChecker checker) throws Exception {
+        URI uri = _uri;
+        for (int page=0; uri != null && page < checker.getPageCount(); page++) {
+            final Exchange exchange = super.fetchAtomFeed(uri, FeedRole.FRAGMENTS_FEED);
+            final Document feed;
+            try {
+                feed = Utils.makeDocument(exchange.openBody(), uri);
+            }
+            finally {
+                exchange.close();
+            }
+            final Nodes entries = query(feed, "atom:feed/atom:entry[sd:resource]");
+            for (int i=0; i<entries.size(); i++) {
+                final Node entry = entries.get(i);
+                final String resource = query(entry, "sd:resource").get(0).getValue();
+                final Nodes updated = query(entry, "atom:updated");
+                assertTrue("The resource " + resource + " is reported twice in " + feed.getBaseURI()
+                            + " or a previous page",
+                            checker.confirmEntry(resource, updated.size() > 0 ? updated.get(0).getValue() : ""));
+            }
+            uri = Utils.nextPageURI(feed);
+        }
+    }
+
+    // checks one page and returns the IRI of the 'next' page or null
+    private URI check(final Document feed, final PagingChecker checker) throws Exception {
         final Nodes entries = query(feed, "atom:feed/atom:entry[sd:resource]");
         if (entries.size() == 0) {
-            LOG.warn("No fragment entries found in " + feed.getBaseURI());
-            return;
+            EventLog.warning(TestFragmentsFeed.class, URI.create(feed.getBaseURI()), "No fragment entries found in " + feed.getBaseURI());
+            return null;
+        }
+        for (int i=0; i<entries.size(); i++) {
+            final Node entry = entries.get(i);
+            final String resource = query(entry, "sd:resource").get(0).getValue();
+            final Nodes updated = query(entry, "atom:updated");
+            // A suspected duplicate is confirmed by confirmEntries
+            checker.addEntry(resource, updated.size() > 0 ? updated.get(0).getValue() : "");
         }
         Nodes links = query(feed, "atom:feed/atom:entry[sd:resource]/atom:link[@rel='" + REL_ALTERNATE + "']");
         int alternates = links.size();
@@ -99,8 +150,8 @@ public class TestFragmentsFeed extends AbstractServerTestCase {
             // see <http://projects.topicmapslab.de/issues/3691>
             assertNotNull("Expected a type attribute", attr);
             assertFalse("Expected a non-empty type attribute", attr.getValue().isEmpty());
-            super.testURIRetrieval(href, attr.getValue());
-            super.testWithUnknownMediaType(href);
+            super.testURIRetrieval(href, FeedRole.FRAGMENT, attr.getValue());
+            super.testWithUnknownMediaType(href, FeedRole.FRAGMENT);
         }
 
         // checking for paging
@@ -108,7 +159,7 @@ public class TestFragmentsFeed extends AbstractServerTestCase {
         assertFalse("Expected zero or one 'next' links in " + feed.getBaseURI(),
                     nexts.size() > 1);
         if (nexts.size() == 0)
-          return;
+          return null;
 
         Element next = (Element) nexts.get(0);
         Attribute attr = next.getAttribute("type");
@@ -121,7 +172,6 @@ public class TestFragmentsFeed extends AbstractServerTestCase {
 
         attr = next.getAttribute("href");
         assertNotNull("No href attribute on 'next' link", attr);
-        URI href = URI.create(feed.getBaseURI()).resolve(attr.getValue());
-        check(href);
+        return URI.create(feed.getBaseURI()).resolve(attr.getValue());
     }
 }
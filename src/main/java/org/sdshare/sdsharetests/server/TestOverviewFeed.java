@@ -18,8 +18,6 @@ package org.sdshare.sdsharetests.server;
 import java.net.URI;
 
 import org.junit.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import nu.xom.Attribute;
 import nu.xom.Document;
@@ -34,8 +32,6 @@ import static org.junit.Assert.*;
  */
 public class TestOverviewFeed extends AbstractServerTestCase {
 
-    private final static Logger LOG = LoggerFactory.getLogger(TestOverviewFeed.class);
-
     /**
      * Checks the overview feed for links to collections.
      *
@@ -47,7 +43,7 @@ public class TestOverviewFeed extends AbstractServerTestCase {
         // Fetch all entries
         final Nodes entries = query(doc, "atom:feed/atom:entry");
         if (entries.size() == 0) {
-            LOG.warn("No collection feeds found in " + doc.getBaseURI());
+            EventLog.warning(TestOverviewFeed.class, URI.create(doc.getBaseURI()), "No collection feeds found in " + doc.getBaseURI());
         }
 
         for (int i = 0; i < entries.size(); i++) {
@@ -71,8 +67,8 @@ public class TestOverviewFeed extends AbstractServerTestCase {
             attr = link.getAttribute("type");
             // Assume Atom iff the "type" attribute is not provided
             final String mediaType = attr != null ? attr.getValue() : MEDIA_TYPE_ATOM_XML;
-            super.testURIRetrieval(href, mediaType);
-            super.testWithUnknownMediaType(href);
+            super.testURIRetrieval(href, FeedRole.COLLECTION_FEED, mediaType);
+            super.testWithUnknownMediaType(href, FeedRole.COLLECTION_FEED);
         }
     }
 
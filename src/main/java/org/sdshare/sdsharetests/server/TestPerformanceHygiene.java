@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010 - 2012 SDShare.org. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sdshare.sdsharetests.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nu.xom.Document;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks if the feeds are efficient to consume: caching headers,
+ * conditional requests, compression, persistent connections and page sizes.
+ * <p>
+ * None of these checks is required by SDShare, so this test is not part of
+ * the default run; it is included if the system property
+ * <tt>org.sdshare.hygiene</tt> is
+ * <tt>true</tt>. Each failure states the measured cost of the finding,
+ * i.e. the bytes and the time each poll spends which the server could
+ * have saved.
+ * </p>
+ */
+@RunWith(Parameterized.class)
+public class TestPerformanceHygiene extends AbstractServerTestCase {
+
+    // Pages with fewer entries (but a 'next' link) cost more requests than they save
+    private static final int _MIN_PAGE_ENTRIES = 10;
+
+    // Pages above this size delay the first entry and must be buffered by clients
+    private static final long _MAX_PAGE_BYTES = 4 << 20;
+
+    // Bodies below this size are not worth compressing
+    private static final int _MIN_COMPRESS_BYTES = 1024;
+
+    private final URI _uri;
+    private final FeedRole _role;
+
+    public TestPerformanceHygiene(final URI uri, final FeedRole role) {
+        _uri = uri;
+        _role = role;
+    }
+
+    @Parameters
+    public static Collection<Object> makeTestCases() {
+        final Collection<Object> result = new ArrayList<Object>();
+        try {
+            result.add(new Object[] { Utils.getServerAddress(), FeedRole.OVERVIEW_FEED });
+            for (URI uri: Utils.fetchCollectionFeedURIs()) {
+                result.add(new Object[] { uri, FeedRole.COLLECTION_FEED });
+            }
+            for (URI uri: Utils.fetchFragmentsFeedURIs()) {
+                result.add(new Object[] { uri, FeedRole.FRAGMENTS_FEED });
+            }
+            for (URI uri: Utils.fetchSnapshotsFeedURIs()) {
+                result.add(new Object[] { uri, FeedRole.SNAPSHOTS_FEED });
+            }
+        }
+        catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if the feed provides a validator (<tt>ETag</tt> or
+     * <tt>Last-Modified</tt>), so pollers can issue conditional requests.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testValidators() throws Exception {
+        final Exchange exchange = super.fetchAtomFeed(_uri, _role);
+        try {
+            if (exchange.getHeader("ETag") == null && exchange.getHeader("Last-Modified") == null) {
+                fail(finding("Neither ETag nor Last-Modified provided",
+                        "each poll transfers the full " + cost(exchange) + " even if the feed did not change"));
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks if the feed provides freshness information (<tt>Cache-Control</tt>
+     * or <tt>Expires</tt>), so clients and intermediaries can avoid requests.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testCacheControl() throws Exception {
+        final Exchange exchange = super.fetchAtomFeed(_uri, _role);
+        try {
+            if (exchange.getHeader("Cache-Control") == null && exchange.getHeader("Expires") == null) {
+                fail(finding("Neither Cache-Control nor Expires provided",
+                        "caches cannot serve the feed, each client request costs " + cost(exchange) + " on the server"));
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks if a conditional request for an unchanged feed is answered
+     * with <tt>304 Not Modified</tt> and without a body.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testConditionalRequest() throws Exception {
+        final Exchange exchange = super.fetchAtomFeed(_uri, _role);
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Accept", MEDIA_TYPE_ATOM_XML);
+        final String etag = exchange.getHeader("ETag");
+        final String lastModified = exchange.getHeader("Last-Modified");
+        exchange.close();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        else if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        else {
+            // Reported by testValidators
+            return;
+        }
+        final Exchange conditional = Utils.fetch(_uri, _role, headers);
+        try {
+            if (conditional.getStatus() == HttpURLConnection.HTTP_OK) {
+                fail(finding("Conditional request (" + (etag != null ? "If-None-Match" : "If-Modified-Since") + ") ignored",
+                        "transferred " + cost(conditional) + " instead of an empty 304 response"));
+            }
+            assertEquals(finding("Unexpected status code for a conditional request", "status " + conditional.getStatus()),
+                    HttpURLConnection.HTTP_NOT_MODIFIED, conditional.getStatus());
+            assertEquals(finding("304 response with a body", conditional.getBodyLength() + " bytes transferred needlessly"),
+                    0, conditional.getBodyLength());
+        }
+        finally {
+            conditional.close();
+        }
+    }
+
+    /**
+     * Checks if the feed is compressed if the client accepts gzip and if the
+     * compressed body is valid.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testCompression() throws Exception {
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Accept", MEDIA_TYPE_ATOM_XML);
+        headers.put("Accept-Encoding", "gzip");
+        final Exchange exchange = Utils.fetch(_uri, _role, headers);
+        try {
+            assertEquals("Expected a status code 200 for " + _uri, HttpURLConnection.HTTP_OK, exchange.getStatus());
+            final String encoding = exchange.getHeader("Content-Encoding");
+            if (encoding != null && encoding.toLowerCase().contains("gzip")) {
+                try {
+                    final long length = count(new GZIPInputStream(exchange.openBody()));
+                    assertTrue(finding("Empty gzip body", exchange.getBodyLength() + " compressed bytes"), length > 0);
+                }
+                catch (IOException ex) {
+                    fail(finding("Invalid gzip body", ex.getMessage()));
+                }
+                return;
+            }
+            if (exchange.getBodyLength() < _MIN_COMPRESS_BYTES) {
+                return;
+            }
+            final CountingOutputStream counter = new CountingOutputStream();
+            final GZIPOutputStream gzip = new GZIPOutputStream(counter);
+            final InputStream in = exchange.openBody();
+            final byte[] buff = new byte[8192];
+            int len;
+            while ((len = in.read(buff)) != -1) {
+                gzip.write(buff, 0, len);
+            }
+            gzip.close();
+            fail(finding("gzip not supported", String.format("%d of %d bytes (%.0f%%) could be saved per request",
+                    exchange.getBodyLength() - counter.count, exchange.getBodyLength(),
+                    100.0 * (exchange.getBodyLength() - counter.count) / exchange.getBodyLength())));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks if the connection can be reused: the response must not close
+     * the connection and the body must be delimited by <tt>Content-Length</tt>
+     * or chunked transfer encoding.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testPersistentConnection() throws Exception {
+        final Exchange exchange = super.fetchAtomFeed(_uri, _role);
+        try {
+            final String connection = exchange.getHeader("Connection");
+            // The status line is stored under the null key (not available in replays)
+            final List<String> statusLine = exchange.getHeaders().get(null);
+            final boolean http10 = statusLine != null && !statusLine.isEmpty() && statusLine.get(0).startsWith("HTTP/1.0");
+            final boolean closed = connection != null
+                    ? connection.toLowerCase().contains("close")
+                    : http10;
+            final String transferEncoding = exchange.getHeader("Transfer-Encoding");
+            final boolean delimited = exchange.getHeader("Content-Length") != null
+                    || (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"));
+            if (closed || !delimited) {
+                final double connectMillis = connectMillis();
+                fail(finding(closed ? "Connection closed after the response" : "Neither Content-Length nor chunked encoding provided",
+                        String.format("each request pays a new TCP connection setup of %.1f ms (%.0f%% of the request time %.1f ms)",
+                                connectMillis, 100.0 * connectMillis / (exchange.getTotalNanos() / 1e6), exchange.getTotalNanos() / 1e6)));
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks if the pages of a paged feed are neither too small nor too large.
+     *
+     * @throws Exception In case of an error.
+     */
+    @Test
+    public void testPageSize() throws Exception {
+        if (_role != FeedRole.FRAGMENTS_FEED && _role != FeedRole.SNAPSHOTS_FEED) {
+            return;
+        }
+        final Exchange exchange = super.fetchAtomFeed(_uri, _role);
+        try {
+            final long bytes = exchange.getBodyLength();
+            if (bytes > _MAX_PAGE_BYTES) {
+                fail(finding("Page too large", String.format("%.1f MiB took %.1f ms, clients cannot process entries before the page is complete",
+                        bytes / (1024.0 * 1024.0), exchange.getTotalNanos() / 1e6)));
+            }
+            final Document feed = super.toAtomDOM(exchange);
+            final int entries = query(feed, "atom:feed/atom:entry").size();
+            if (Utils.nextPageURI(feed) != null && entries < _MIN_PAGE_ENTRIES) {
+                final double millis = exchange.getTotalNanos() / 1e6;
+                final int requests = (1000 + Math.max(1, entries) - 1) / Math.max(1, entries);
+                fail(finding("Page too small (" + entries + " entries)",
+                        String.format("%d requests per 1000 entries at %.1f ms each (%.1f s), %d with %d entries per page",
+                                requests, millis, requests * millis / 1000, (1000 + _MIN_PAGE_ENTRIES - 1) / _MIN_PAGE_ENTRIES, _MIN_PAGE_ENTRIES)));
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private String finding(final String problem, final String impact) {
+        return problem + " for " + _role.label() + " " + _uri + ": " + impact;
+    }
+
+    private static String cost(final Exchange exchange) {
+        return String.format("%d bytes in %.1f ms", exchange.getBodyLength(), exchange.getTotalNanos() / 1e6);
+    }
+
+    // Returns the mean time to establish a TCP connection to the server
+    private double connectMillis() throws IOException {
+        final int port = _uri.getPort() != -1 ? _uri.getPort() : ("https".equalsIgnoreCase(_uri.getScheme()) ? 443 : 80);
+        final int samples = 3;
+        long total = 0;
+        for (int i=0; i<samples; i++) {
+            final Socket socket = new Socket();
+            final long start = System.nanoTime();
+            try {
+                socket.connect(new InetSocketAddress(_uri.getHost(), port));
+                total += System.nanoTime() - start;
+            }
+            finally {
+                socket.close();
+            }
+        }
+        return total / 1e6 / samples;
+    }
+
+    private static long count(final InputStream in) throws IOException {
+        try {
+            long count = 0;
+            final byte[] buff = new byte[8192];
+            int len;
+            while ((len = in.read(buff)) != -1) {
+                count += len;
+            }
+            return count;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Discards the written bytes and counts them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
+}
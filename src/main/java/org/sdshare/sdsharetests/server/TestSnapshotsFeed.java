@@ -30,9 +30,6 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 import static org.junit.Assert.*;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * Tests against the 
  * <a href="http://www.egovpt.org/fg/CWA_Part_1b#head-103ee1c2a08e2c511bfbee5450274fcbd4e19dd6">snapshots feed</a>.
@@ -40,8 +37,6 @@ import org.slf4j.LoggerFactory;
 @RunWith(Parameterized.class)
 public class TestSnapshotsFeed extends AbstractServerTestCase {
 
-    private static final Logger LOG = LoggerFactory.getLogger(TestSnapshotsFeed.class);
-
     private final URI _uri;
 
     public TestSnapshotsFeed(final URI uri) {
@@ -64,10 +59,10 @@ public class TestSnapshotsFeed extends AbstractServerTestCase {
 
     @Test
     public void testSnapshotsFeed() throws Exception {
-        final Document feed = super.fetchAtomFeedAsDOM(_uri);
+        final Document feed = super.fetchAtomFeedAsDOM(_uri, FeedRole.SNAPSHOTS_FEED);
         final Nodes links = query(feed, "atom:feed/atom:entry/atom:link[@rel='" + REL_SNAPSHOT + "']");
         if (links.size() == 0) {
-            LOG.warn("No snapshots found in " + feed.getBaseURI());
+            EventLog.warning(TestSnapshotsFeed.class, URI.create(feed.getBaseURI()), "No snapshots found in " + feed.getBaseURI());
         }
         
         for (int i=0; i<links.size(); i++) {
@@ -80,8 +75,8 @@ public class TestSnapshotsFeed extends AbstractServerTestCase {
             // see <http://projects.topicmapslab.de/issues/3691>
             assertNotNull("Expected a type attribute", attr);
             assertFalse("Expected a non-empty type attribute", attr.getValue().isEmpty());
-            super.testURIRetrieval(href, attr.getValue());
-            super.testWithUnknownMediaType(href);
+            super.testURIRetrieval(href, FeedRole.SNAPSHOT, attr.getValue());
+            super.testWithUnknownMediaType(href, FeedRole.SNAPSHOT);
         }
     }
 }
@@ -15,21 +15,49 @@
  */
 package org.sdshare.sdsharetests.server;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.sdshare.sdsharetests.IConstants;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import nu.xom.Attribute;
 import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.Element;
+import nu.xom.NodeFactory;
 import nu.xom.Nodes;
+import nu.xom.XMLException;
 import nu.xom.XPathContext;
 
 /**
@@ -37,6 +65,14 @@ import nu.xom.XPathContext;
  */
 final class Utils implements IConstants {
 
+    private static final String _PARSER_PROPERTY = "org.sdshare.parser";
+    private static final String _CONNECT_TIMEOUT_PROPERTY = "org.sdshare.http.connecttimeout";
+    private static final String _READ_TIMEOUT_PROPERTY = "org.sdshare.http.readtimeout";
+    private static final String _RETRIES_PROPERTY = "org.sdshare.http.retries";
+    private static final String _RETRY_DELAY_PROPERTY = "org.sdshare.http.retrydelay";
+    private static final String _MAX_CONCURRENT_PROPERTY = "org.sdshare.http.maxconcurrent";
+    private static final String _PROXY_PROPERTY = "org.sdshare.proxy";
+
     private static final XPathContext _XPATH_CTX;
 
     static {
@@ -44,6 +80,48 @@ final class Utils implements IConstants {
         _XPATH_CTX.addNamespace("sd", NS_SDSHARE);
     }
 
+    private static final ThreadLocal<DatatypeFactory> _DATATYPE_FACTORY = new ThreadLocal<DatatypeFactory>() {
+        @Override
+        protected DatatypeFactory initialValue() {
+            try {
+                return DatatypeFactory.newInstance();
+            }
+            catch (DatatypeConfigurationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    private static final TimeZone _UTC = TimeZone.getTimeZone("UTC");
+
+    // Builders are not thread-safe but can be reused
+    private static final ThreadLocal<Builder> _BUILDER = new ThreadLocal<Builder>() {
+        @Override
+        protected Builder initialValue() {
+            return newBuilder(null);
+        }
+    };
+
+    private static final List<IExchangeListener> _LISTENERS = new CopyOnWriteArrayList<IExchangeListener>();
+
+    private static volatile HttpArchive _archive;
+    private static volatile boolean _archiveInitialized;
+
+    private static final int _CONNECT_TIMEOUT = Integer.getInteger(_CONNECT_TIMEOUT_PROPERTY, 0);
+    private static final int _READ_TIMEOUT = Integer.getInteger(_READ_TIMEOUT_PROPERTY, 0);
+    private static final int _RETRIES = Integer.getInteger(_RETRIES_PROPERTY, 0);
+    private static final long _RETRY_DELAY = Long.getLong(_RETRY_DELAY_PROPERTY, 500);
+    // Upper bound of a Retry-After delay
+    private static final long _MAX_RETRY_AFTER = 60000;
+
+    // null if the number of concurrent requests is not limited
+    private static final Semaphore _PERMITS = Integer.getInteger(_MAX_CONCURRENT_PROPERTY, 0) > 0
+                                                ? new Semaphore(Integer.getInteger(_MAX_CONCURRENT_PROPERTY), true)
+                                                : null;
+
+    private static volatile FaultProxy _proxy;
+    private static volatile boolean _proxyInitialized;
+
     private Utils() {
         // noop.
     }
@@ -70,20 +148,104 @@ final class Utils implements IConstants {
         return makeDocument(in, base.toASCIIString());
     }
 
+    /**
+     * Parses the stream with the builder of the current thread.
+     * <p>
+     * Each thread keeps one builder (and with it one SAX parser) which is
+     * reused for all documents; the SAX parser is selected by the system
+     * property <tt>org.sdshare.parser</tt>, see {@link #newBuilder(NodeFactory)}.
+     * </p>
+     *
+     * @param in The stream to parse.
+     * @param base The base IRI of the document.
+     * @return The document.
+     * @throws Exception In case of an error.
+     */
     public static Document makeDocument(final InputStream in, final String base) throws Exception {
-        return new Builder().build(in, base);
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.PARSE, null);
+        try {
+            return _BUILDER.get().build(in, base);
+        }
+        finally {
+            ClientOverhead.end(span);
+        }
     }
 
     /**
-     * 
+     * Returns a new builder which uses the SAX parser selected by the
+     * system property <tt>org.sdshare.parser</tt>:
+     * <ul>
+     *   <li>not set: the parser XOM prefers (Xerces if available)</li>
+     *   <li><tt>jaxp</tt>: the parser of the JAXP <tt>SAXParserFactory</tt></li>
+     *   <li>otherwise: the class name of an <tt>org.xml.sax.XMLReader</tt></li>
+     * </ul>
+     * Builders are not thread-safe.
      *
-     * @param uri
-     * @return
-     * @throws MalformedURLException
-     * @throws IOException
+     * @param factory The node factory or <tt>null</tt> for the default factory.
+     * @return A builder.
+     * @throws IllegalStateException If the parser cannot be created.
+     */
+    static Builder newBuilder(final NodeFactory factory) {
+        final String parser = System.getProperty(_PARSER_PROPERTY);
+        if (parser == null) {
+            return factory == null ? new Builder() : new Builder(factory);
+        }
+        try {
+            final XMLReader reader;
+            if ("jaxp".equals(parser)) {
+                final SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+                saxFactory.setNamespaceAware(true);
+                reader = saxFactory.newSAXParser().getXMLReader();
+            }
+            else {
+                reader = newXMLReader(parser);
+            }
+            return new Builder(reader, false, factory == null ? new NodeFactory() : factory);
+        }
+        catch (ParserConfigurationException ex) {
+            throw new IllegalStateException("Cannot create the parser '" + parser + "' (" + _PARSER_PROPERTY + ")", ex);
+        }
+        catch (SAXException ex) {
+            throw new IllegalStateException("Cannot create the parser '" + parser + "' (" + _PARSER_PROPERTY + ")", ex);
+        }
+        catch (XMLException ex) {
+            throw new IllegalStateException("The parser '" + parser + "' (" + _PARSER_PROPERTY + ") is not supported by XOM", ex);
+        }
+    }
+
+    private static XMLReader newXMLReader(final String className) {
+        try {
+            return Class.forName(className).asSubclass(XMLReader.class).getConstructor().newInstance();
+        }
+        catch (ClassCastException ex) {
+            throw new IllegalStateException("The class '" + className + "' (" + _PARSER_PROPERTY + ") is not an XMLReader", ex);
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException("Cannot create the parser '" + className + "' (" + _PARSER_PROPERTY + ")", ex);
+        }
+    }
+
+    /**
+     * Opens a connection with the timeouts of the system properties
+     * <tt>org.sdshare.http.connecttimeout</tt> and
+     * <tt>org.sdshare.http.readtimeout</tt>.
+     * <p>
+     * If <tt>org.sdshare.proxy</tt> is <tt>true</tt>, the connection
+     * goes through the {@link FaultProxy}.
+     * </p>
+     *
+     * @param uri The IRI to connect to.
+     * @return The connection.
+     * @throws MalformedURLException If the IRI cannot be converted into a URL.
+     * @throws IOException In case of an error.
      */
     public static HttpURLConnection connect(final URI uri) throws IOException {
-        return (HttpURLConnection) uri.toURL().openConnection();
+        final FaultProxy proxy = getFaultProxy();
+        final HttpURLConnection conn = (HttpURLConnection) (proxy != null ? uri.toURL().openConnection(proxy.asProxy())
+                                                                          : uri.toURL().openConnection());
+        conn.setConnectTimeout(_CONNECT_TIMEOUT);
+        conn.setReadTimeout(_READ_TIMEOUT);
+        return conn;
     }
 
     /**
@@ -101,6 +263,269 @@ final class Utils implements IConstants {
         return conn;
     }
 
+    /**
+     * Executes a GET request and reads the complete response.
+     * <p>
+     * The body of an error response (status code 400 or above) is read from
+     * the error stream, so the exchange is complete in either case.
+     * </p>
+     *
+     * @param uri The IRI to retrieve.
+     * @param role The role of the resource.
+     * @param acceptHeader The value of the <tt>Accept</tt> header.
+     * @return The exchange, to be closed by the caller.
+     * @throws IOException In case of an error.
+     */
+    public static Exchange fetch(final URI uri, final FeedRole role, final String acceptHeader) throws IOException {
+        final Map<String, String> requestHeaders = new LinkedHashMap<String, String>(2);
+        requestHeaders.put("Accept", acceptHeader);
+        return fetch(uri, role, requestHeaders);
+    }
+
+    /**
+     * Executes a GET request with the provided request headers and reads
+     * the complete response.
+     * <p>
+     * If the system property {@link HttpArchive#REPLAY_PROPERTY} is set,
+     * the response is read from the archive instead of the server. If
+     * {@link HttpArchive#RECORD_PROPERTY} is set, the exchange is appended to
+     * the archive.
+     * </p>
+     * <p>
+     * A request which fails with an I/O error or a 503 response is repeated
+     * up to <tt>org.sdshare.http.retries</tt> times with an exponential
+     * backoff or after the delay of the <tt>Retry-After</tt> header; the
+     * listeners are notified about the last attempt only.
+     * </p>
+     *
+     * @param uri The IRI to retrieve.
+     * @param role The role of the resource.
+     * @param requestHeaders The request headers.
+     * @return The exchange, to be closed by the caller.
+     * @throws IOException In case of an error.
+     */
+    public static Exchange fetch(final URI uri, final FeedRole role, final Map<String, String> requestHeaders) throws IOException {
+        return fetch(uri, role, requestHeaders, false);
+    }
+
+    /**
+     * Executes a GET request and reads the status code and the response
+     * headers only; the body is not read.
+     * <p>
+     * The exchange has an empty body unless an archive is recorded or
+     * replayed (see {@link HttpArchive#RECORD_PROPERTY}), which needs the
+     * complete response. Apart from that the request is executed like by
+     * {@link #fetch(URI, FeedRole, String)}.
+     * </p>
+     *
+     * @param uri The IRI to retrieve.
+     * @param role The role of the resource.
+     * @param acceptHeader The value of the <tt>Accept</tt> header.
+     * @return The exchange, to be closed by the caller.
+     * @throws IOException In case of an error.
+     */
+    public static Exchange fetchHeaders(final URI uri, final FeedRole role, final String acceptHeader) throws IOException {
+        final Map<String, String> requestHeaders = new LinkedHashMap<String, String>(2);
+        requestHeaders.put("Accept", acceptHeader);
+        return fetch(uri, role, requestHeaders, true);
+    }
+
+    private static Exchange fetch(final URI uri, final FeedRole role, final Map<String, String> requestHeaders,
+            final boolean headersOnly) throws IOException {
+        Exchange exchange = null;
+        final ClientOverhead.Span span = ClientOverhead.begin(ClientOverhead.Phase.NETWORK, role);
+        try {
+            for (int attempt=0; exchange == null; attempt++) {
+                long delay = _RETRY_DELAY << attempt;
+                try {
+                    exchange = execute(uri, role, requestHeaders, headersOnly);
+                }
+                catch (IOException ex) {
+                    if (attempt >= _RETRIES) {
+                        throw ex;
+                    }
+                    EventLog.warning(Utils.class, uri, "Retrying in " + delay + " ms after " + ex);
+                }
+                if (exchange != null && exchange.getStatus() == HttpURLConnection.HTTP_UNAVAILABLE && attempt < _RETRIES) {
+                    delay = Math.max(delay, retryAfter(exchange));
+                    EventLog.warning(Utils.class, uri, "Retrying in " + delay + " ms after status 503");
+                    exchange.close();
+                    exchange = null;
+                }
+                if (exchange == null) {
+                    Thread.sleep(delay);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            final IOException ioe = new InterruptedIOException("Interrupted while waiting for a retry of " + uri);
+            for (IExchangeListener listener: _LISTENERS) {
+                listener.exchangeFailed(uri, role, ioe);
+            }
+            throw ioe;
+        }
+        catch (IOException ex) {
+            for (IExchangeListener listener: _LISTENERS) {
+                listener.exchangeFailed(uri, role, ex);
+            }
+            throw ex;
+        }
+        finally {
+            ClientOverhead.end(span);
+        }
+        for (IExchangeListener listener: _LISTENERS) {
+            listener.exchangeCompleted(exchange);
+        }
+        return exchange;
+    }
+
+    /**
+     * Registers a listener which is notified about each exchange.
+     *
+     * @param listener The listener to add.
+     */
+    public static void addExchangeListener(final IExchangeListener listener) {
+        _LISTENERS.add(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public static void removeExchangeListener(final IExchangeListener listener) {
+        _LISTENERS.remove(listener);
+    }
+
+    private static Exchange execute(final URI uri, final FeedRole role, final Map<String, String> requestHeaders,
+            final boolean headersOnly) throws IOException {
+        final HttpArchive archive = getArchive();
+        if (archive != null && archive.isReplaying()) {
+            return archive.replay(uri, role, requestHeaders);
+        }
+        if (_PERMITS != null) {
+            try {
+                _PERMITS.acquire();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection to " + uri);
+            }
+        }
+        final Exchange exchange;
+        try {
+            final long startMillis = System.currentTimeMillis();
+            final long start = System.nanoTime();
+            final HttpURLConnection conn = connect(uri);
+            for (Map.Entry<String, String> header: requestHeaders.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (_proxy != null) {
+                conn.setRequestProperty(FaultProxy.ROLE_HEADER, role.name());
+            }
+            final int status = conn.getResponseCode();
+            final long headers = System.nanoTime();
+            final InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+            final Body body;
+            if (in == null) {
+                body = Body.empty();
+            }
+            else if (headersOnly && archive == null) {
+                // The JDK drains a short remainder to keep the connection alive, otherwise it closes it
+                in.close();
+                body = Body.empty();
+            }
+            else {
+                body = Body.read(in);
+            }
+            exchange = new Exchange(uri, role, requestHeaders, status, conn.getHeaderFields(), body,
+                    startMillis, headers - start, System.nanoTime() - start);
+        }
+        finally {
+            if (_PERMITS != null) {
+                _PERMITS.release();
+            }
+        }
+        if (archive != null) {
+            try {
+                archive.record(exchange);
+            }
+            catch (IOException ex) {
+                exchange.close();
+                throw ex;
+            }
+        }
+        return exchange;
+    }
+
+    /**
+     * Returns the delay of the <tt>Retry-After</tt> header in milliseconds.
+     *
+     * @param exchange The exchange.
+     * @return The delay or <tt>0</tt> if the header is missing or not a number of seconds.
+     */
+    private static long retryAfter(final Exchange exchange) {
+        final String value = exchange.getHeader("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.min(_MAX_RETRY_AFTER, Long.parseLong(value.trim()) * 1000);
+        }
+        catch (NumberFormatException ex) {
+            // An HTTP date, not supported
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the fault proxy the requests are sent through.
+     *
+     * @return The proxy or <tt>null</tt> if <tt>org.sdshare.proxy</tt> is not <tt>true</tt>.
+     * @throws IOException If the proxy cannot be started.
+     */
+    private static FaultProxy getFaultProxy() throws IOException {
+        if (_proxyInitialized) {
+            return _proxy;
+        }
+        synchronized (Utils.class) {
+            if (!_proxyInitialized) {
+                if (Boolean.getBoolean(_PROXY_PROPERTY)) {
+                    _proxy = FaultProxy.start();
+                }
+                _proxyInitialized = true;
+            }
+            return _proxy;
+        }
+    }
+
+    /**
+     * Returns the archive to record to or to replay from.
+     *
+     * @return The archive or <tt>null</tt> if neither recording nor replaying is enabled.
+     * @throws IOException If the archive cannot be opened.
+     */
+    private static HttpArchive getArchive() throws IOException {
+        if (_archiveInitialized) {
+            return _archive;
+        }
+        synchronized (Utils.class) {
+            if (!_archiveInitialized) {
+                final String replay = System.getProperty(HttpArchive.REPLAY_PROPERTY);
+                final String record = System.getProperty(HttpArchive.RECORD_PROPERTY);
+                if (replay != null) {
+                    _archive = HttpArchive.forReplay(new File(replay));
+                }
+                else if (record != null) {
+                    _archive = HttpArchive.forRecording(new File(record));
+                }
+                _archiveInitialized = true;
+            }
+            return _archive;
+        }
+    }
+
     /**
      * Returns the overview feed.
      *
@@ -108,31 +533,79 @@ final class Utils implements IConstants {
      * @throws Exception In case of an error.
      */
     public static Document fetchOverviewFeed() throws Exception {
-        final URI uri = getServerAddress();
-        final HttpURLConnection conn = connect(uri, MEDIA_TYPE_ATOM_XML);
-        return makeDocument(conn.getInputStream(), uri);
+        return fetchFeed(getServerAddress(), FeedRole.OVERVIEW_FEED);
     }
 
     /**
      * Returns a feed.
      *
-     * @return The overview feed as DOM.
+     * @param uri The feed IRI.
+     * @param role The role of the feed.
+     * @return The feed as DOM.
      * @throws Exception In case of an error.
      */
-    public static Document fetchFeed(final URI uri) throws Exception {
-        final HttpURLConnection conn = connect(uri, MEDIA_TYPE_ATOM_XML);
-        return makeDocument(conn.getInputStream(), uri);
+    public static Document fetchFeed(final URI uri, final FeedRole role) throws Exception {
+        final Exchange exchange = fetch(uri, role, MEDIA_TYPE_ATOM_XML);
+        try {
+            if (exchange.getStatus() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("Server returned HTTP response code: " + exchange.getStatus() + " for URL: " + uri);
+            }
+            return makeDocument(exchange.openBody(), uri);
+        }
+        finally {
+            exchange.close();
+        }
     }
 
+    /**
+     * Returns the collection feed IRIs listed in the overview feed.
+     * <p>
+     * If the system property {@link IConstants#SHARD_PROPERTY} is set, only
+     * the IRIs which are listed in the shard file are returned.
+     * </p>
+     *
+     * @return The collection feed IRIs.
+     * @throws Exception In case of an error.
+     */
     public static Collection<URI> fetchCollectionFeedURIs() throws Exception {
         final Document overviewFeed = fetchOverviewFeed();
-        return linksToURIs(overviewFeed.getBaseURI(), overviewFeed.query("atom:feed/atom:entry/atom:link[@rel='" + REL_COLLECTION_FEED + "'][not(@type) or @type='application/atom+xml']", getDefaultXPathContext()));
+        final Collection<URI> result = linksToURIs(overviewFeed.getBaseURI(), overviewFeed.query("atom:feed/atom:entry/atom:link[@rel='" + REL_COLLECTION_FEED + "'][not(@type) or @type='application/atom+xml']", getDefaultXPathContext()));
+        final String shard = System.getProperty(SHARD_PROPERTY);
+        if (shard != null) {
+            result.retainAll(readURIs(new File(shard)));
+        }
+        return result;
+    }
+
+    /**
+     * Reads a file with one IRI per line. Empty lines are ignored.
+     *
+     * @param file The file to read.
+     * @return The IRIs.
+     * @throws IOException In case of an error.
+     */
+    public static Set<URI> readURIs(final File file) throws IOException {
+        final Set<URI> result = new LinkedHashSet<URI>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    result.add(URI.create(line));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return result;
     }
 
     public static Collection<URI> fetchFragmentsFeedURIs() throws Exception {
         final Collection<URI> result = new ArrayList<URI>();
         for (URI uri: Utils.fetchCollectionFeedURIs()) {
-            Document doc = fetchFeed(uri);
+            Document doc = fetchFeed(uri, FeedRole.COLLECTION_FEED);
             Nodes nodes = doc.query("atom:feed/atom:entry/atom:link[@rel='" + REL_FRAGMENTS_FEED + "'][not(@type) or @type='application/atom+xml']", getDefaultXPathContext());
             result.addAll(Utils.linksToURIs(doc.getBaseURI(), nodes));
         }
@@ -142,13 +615,38 @@ final class Utils implements IConstants {
     public static Collection<URI> fetchSnapshotsFeedURIs() throws Exception {
         final Collection<URI> result = new ArrayList<URI>();
         for (URI uri: Utils.fetchCollectionFeedURIs()) {
-            Document doc = fetchFeed(uri);
+            Document doc = fetchFeed(uri, FeedRole.COLLECTION_FEED);
             Nodes nodes = doc.query("atom:feed/atom:entry/atom:link[@rel='" + REL_SNAPSHOTS_FEED + "'][not(@type) or @type='application/atom+xml']", getDefaultXPathContext());
             result.addAll(Utils.linksToURIs(doc.getBaseURI(), nodes));
         }
         return result;
     }
 
+    /**
+     * Returns the snapshots feed and the fragments feed of each collection.
+     * <p>
+     * Both IRIs are taken from the same collection feed document, so they
+     * belong to the same collection regardless of the order in which the
+     * server lists its collections. If a collection feed links to several
+     * snapshots or fragments feeds, the first one is used.
+     * </p>
+     *
+     * @return The feeds per collection feed.
+     * @throws Exception In case of an error.
+     */
+    public static List<CollectionFeeds> fetchCollectionFeeds() throws Exception {
+        final List<CollectionFeeds> result = new ArrayList<CollectionFeeds>();
+        for (URI uri: Utils.fetchCollectionFeedURIs()) {
+            final Document doc = fetchFeed(uri, FeedRole.COLLECTION_FEED);
+            final String link = "atom:feed/atom:entry/atom:link[@rel='%s'][not(@type) or @type='application/atom+xml']";
+            final Collection<URI> snapshotsFeeds = linksToURIs(doc.getBaseURI(), doc.query(String.format(link, REL_SNAPSHOTS_FEED), getDefaultXPathContext()));
+            final Collection<URI> fragmentsFeeds = linksToURIs(doc.getBaseURI(), doc.query(String.format(link, REL_FRAGMENTS_FEED), getDefaultXPathContext()));
+            result.add(new CollectionFeeds(uri, snapshotsFeeds.isEmpty() ? null : snapshotsFeeds.iterator().next(),
+                    fragmentsFeeds.isEmpty() ? null : fragmentsFeeds.iterator().next()));
+        }
+        return result;
+    }
+
     public static Collection<URI> linksToURIs(final String base, final Nodes links) {
         final Collection<URI> result = new ArrayList<URI>();
         final URI baseURI = URI.create(base);
@@ -160,4 +658,119 @@ final class Utils implements IConstants {
         return result;
     }
 
+    /**
+     * Returns the IRI of the next page of a paged feed.
+     *
+     * @param feed The feed.
+     * @return The IRI of the next page or <tt>null</tt> if the feed has no 'next' link.
+     */
+    public static URI nextPageURI(final Document feed) {
+        final Nodes nexts = feed.query("atom:feed/atom:link[@rel='next']", getDefaultXPathContext());
+        if (nexts.size() == 0) {
+            return null;
+        }
+        final Attribute attr = ((Element) nexts.get(0)).getAttribute("href");
+        return attr == null ? null : URI.create(feed.getBaseURI()).resolve(attr.getValue());
+    }
+
+    /**
+     * Returns the IRI of a fragments feed restricted to the entries updated
+     * at or after the provided time (SDShare <tt>since</tt> parameter).
+     *
+     * @param uri The fragments feed IRI.
+     * @param since The number of milliseconds since the epoch.
+     * @return The fragments feed IRI with the <tt>since</tt> parameter.
+     */
+    public static URI withSince(final URI uri, final long since) {
+        try {
+            return URI.create(uri.toString() + (uri.getRawQuery() == null ? "?" : "&")
+                    + "since=" + URLEncoder.encode(formatDateTime(since), "utf-8"));
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Parses a date/time value as used by <tt>atom:updated</tt>.
+     *
+     * @param value The date/time, i.e. <tt>2012-07-10T12:00:00Z</tt>.
+     * @return The number of milliseconds since the epoch.
+     * @throws IllegalArgumentException If the value is not a valid date/time.
+     */
+    public static long parseDateTime(final String value) {
+        return _DATATYPE_FACTORY.get().newXMLGregorianCalendar(value.trim()).toGregorianCalendar().getTimeInMillis();
+    }
+
+    /**
+     * Returns the provided entries ordered by their <tt>atom:updated</tt>
+     * value, newest first.
+     * <p>
+     * SDShare does not prescribe an order of the entries, so the latest
+     * snapshot is not necessarily listed first. Entries without a valid
+     * <tt>atom:updated</tt> value are put last; entries with the same value
+     * keep their document order.
+     * </p>
+     *
+     * @param entries The <tt>atom:entry</tt> elements.
+     * @return The entries, newest first.
+     */
+    public static List<Element> newestFirst(final Nodes entries) {
+        final List<Element> result = new ArrayList<Element>(entries.size());
+        final Map<Element, Long> updated = new IdentityHashMap<Element, Long>();
+        for (int i=0; i<entries.size(); i++) {
+            final Element entry = (Element) entries.get(i);
+            final Nodes values = entry.query("atom:updated", _XPATH_CTX);
+            long time = Long.MIN_VALUE;
+            if (values.size() > 0) {
+                try {
+                    time = parseDateTime(values.get(0).getValue());
+                }
+                catch (IllegalArgumentException ex) {
+                    // Put last
+                }
+            }
+            updated.put(entry, time);
+            result.add(entry);
+        }
+        Collections.sort(result, new Comparator<Element>() {
+            @Override
+            public int compare(final Element a, final Element b) {
+                return updated.get(b).compareTo(updated.get(a));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Formats a point in time as UTC date/time as used by <tt>atom:updated</tt>.
+     *
+     * @param millis The number of milliseconds since the epoch.
+     * @return The date/time, i.e. <tt>2012-07-10T12:00:00.000Z</tt>.
+     */
+    public static String formatDateTime(final long millis) {
+        final GregorianCalendar cal = new GregorianCalendar(_UTC);
+        cal.setTimeInMillis(millis);
+        return _DATATYPE_FACTORY.get().newXMLGregorianCalendar(cal).toXMLFormat();
+    }
+
+
+
+    /**
+     * The snapshots feed and the fragments feed of a collection.
+     */
+    static final class CollectionFeeds {
+
+        final URI uri;
+        // null if the collection feed has no such link
+        final URI snapshotsFeed;
+        final URI fragmentsFeed;
+
+        CollectionFeeds(final URI uri, final URI snapshotsFeed, final URI fragmentsFeed) {
+            this.uri = uri;
+            this.snapshotsFeed = snapshotsFeed;
+            this.fragmentsFeed = fragmentsFeed;
+        }
+    }
+
 }